@@ -0,0 +1,206 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import static org.openforis.ceo.ETags.addVary;
+
+// Compresses the responses of the API routes with gzip or deflate for
+// clients that accept either.
+//
+// - Responses shorter than ceo.compression.minBytes (default 1 KB) are
+//   sent as they are, since compressing them saves next to nothing.
+// - The compressed body is written to the servlet response directly,
+//   which commits it, so Spark doesn't serialize the route's result
+//   again. This works the same with the embedded Jetty (Server.main)
+//   and in a servlet container (SparkFilter in web.xml).
+// - Routes wrapped with a version function keep their compressed
+//   responses per path, version and encoding within
+//   ceo.compression.cacheBytes (default 64 MB), evicting the least
+//   recently used first. Requests for an unchanged version are answered
+//   from there without running the route or compressing anything.
+public class Compression {
+
+    private static class Payload {
+        final String contentType;
+        final List<String> vary;
+        final byte[] bytes;
+
+        Payload(String contentType, List<String> vary, byte[] bytes) {
+            this.contentType = contentType;
+            this.vary = vary;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final int minBytes = Integer.getInteger("ceo.compression.minBytes", 1024);
+    private static final long maxCacheBytes = Long.getLong("ceo.compression.cacheBytes", 64L * 1024L * 1024L);
+    private static final LinkedHashMap<String, Payload> payloads = new LinkedHashMap<String, Payload>(16, 0.75f, true);
+    private static long cacheBytes = 0;
+
+    // Returns "gzip" or "deflate" if acceptEncoding allows either (preferring gzip), or null
+    static String chooseEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Map<String, Double> qualities = new HashMap<String, Double>();
+        Stream.of(acceptEncoding.split(",")).forEach(coding -> {
+                String[] params = coding.split(";");
+                double quality = 1.0;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0.0;
+                        }
+                    }
+                }
+                qualities.put(params[0].trim().toLowerCase(), quality);
+            });
+        double anyQuality = qualities.getOrDefault("*", 0.0);
+        return Stream.of("gzip", "deflate")
+            .filter(encoding -> qualities.getOrDefault(encoding, anyQuality) > 0.0)
+            .findFirst()
+            .orElse(null);
+    }
+
+    private static byte[] toBytes(Object body) {
+        // Like Spark's default serializer
+        return body instanceof byte[] ? (byte[]) body : body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] compress(byte[] bytes, String encoding, int level) {
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            DeflaterOutputStream out = encoding.equals("gzip")
+                ? new GZIPOutputStream(compressed) { { def.setLevel(level); } }
+                : new DeflaterOutputStream(compressed) { { def.setLevel(level); } };
+            out.write(bytes);
+            out.close();
+            return compressed.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Payload makePayload(Response res, Object body, String encoding, int level) {
+        HttpServletResponse raw = res.raw();
+        // Spark's default content type for routes that don't set one
+        String contentType = raw.getContentType() != null ? raw.getContentType() : "text/html; charset=utf-8";
+        List<String> vary = raw.getHeaders("Vary").stream()
+            .filter(value -> !value.equals("Accept-Encoding"))
+            .collect(Collectors.toList());
+        return new Payload(contentType, vary, compress(toBytes(body), encoding, level));
+    }
+
+    private static String send(Response res, String encoding, Payload payload) {
+        HttpServletResponse raw = res.raw();
+        raw.setContentType(payload.contentType);
+        raw.setHeader("Content-Encoding", encoding);
+        raw.setContentLength(payload.bytes.length);
+        try {
+            raw.getOutputStream().write(payload.bytes);
+            raw.flushBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return "";
+    }
+
+    private static boolean isCompressible(Response res, Object body) {
+        return body != null
+            && res.raw().getStatus() == 200
+            && (body instanceof byte[] ? ((byte[]) body).length : body.toString().length()) >= minBytes;
+    }
+
+    private static Payload getCached(String key) {
+        synchronized (payloads) {
+            return payloads.get(key);
+        }
+    }
+
+    private static void addCached(String key, Payload payload) {
+        if (payload.bytes.length > maxCacheBytes) {
+            return;
+        }
+        synchronized (payloads) {
+            Payload previous = payloads.put(key, payload);
+            cacheBytes += payload.bytes.length - (previous != null ? previous.bytes.length : 0);
+            while (cacheBytes > maxCacheBytes) {
+                Map.Entry<String, Payload> eldest = payloads.entrySet().iterator().next();
+                cacheBytes -= eldest.getValue().bytes.length;
+                payloads.remove(eldest.getKey());
+            }
+        }
+    }
+
+    // Wraps route so that its large responses are compressed
+    public static Route compressed(Route route) {
+        return (req, res) -> {
+            String encoding = chooseEncoding(req.headers("Accept-Encoding"));
+            addVary(res, "Accept-Encoding");
+            Object body = route.handle(req, res);
+            if (encoding != null && isCompressible(res, body)) {
+                return send(res, encoding, makePayload(res, body, encoding, Deflater.DEFAULT_COMPRESSION));
+            } else {
+                return body;
+            }
+        };
+    }
+
+    // Wraps route so that its large responses are compressed once for
+    // each version that getVersion returns for the request, which must
+    // determine the response along with the request's path and query.
+    // These are compressed as well as possible, since it's done once.
+    public static Route compressed(BiFunction<Request, Response, String> getVersion, Route route) {
+        return (req, res) -> {
+            String encoding = chooseEncoding(req.headers("Accept-Encoding"));
+            addVary(res, "Accept-Encoding");
+            if (encoding == null) {
+                return route.handle(req, res);
+            }
+            String key = req.pathInfo() + "?" + req.queryString() + "@" + getVersion.apply(req, res) + ":" + encoding;
+            Payload cached = getCached(key);
+            if (cached != null) {
+                cached.vary.forEach(value -> addVary(res, value));
+                return send(res, encoding, cached);
+            }
+            Object body = route.handle(req, res);
+            if (isCompressible(res, body)) {
+                Payload payload = makePayload(res, body, encoding, Deflater.BEST_COMPRESSION);
+                addCached(key, payload);
+                return send(res, encoding, payload);
+            } else {
+                return body;
+            }
+        };
+    }
+
+    public static JsonObject getCacheStats() {
+        synchronized (payloads) {
+            JsonObject stats = new JsonObject();
+            stats.addProperty("entries", payloads.size());
+            stats.addProperty("bytes", cacheBytes);
+            stats.addProperty("maxBytes", maxCacheBytes);
+            return stats;
+        }
+    }
+
+}
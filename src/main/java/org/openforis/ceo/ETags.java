@@ -0,0 +1,72 @@
+package org.openforis.ceo;
+
+import java.util.Arrays;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import static org.openforis.ceo.JsonUtils.checkFileVersion;
+
+// Conditional GET for JSON API routes whose responses only depend on
+// the request and the versions of some data files.
+//
+// - withETag computes a strong ETag from those versions before the
+//   route runs. If the request's If-None-Match already names it, the
+//   route is skipped and 304 is returned, so nothing is read, parsed
+//   or serialized.
+// - File versions start over when the server starts, so every ETag
+//   includes the time of the start as well.
+// - The versions are read before the route runs, so a concurrent change
+//   can only make a response look older than it is, never newer.
+// - The routes are wrapped in Compression.compressed as well, so the
+//   content coding the response will get is part of the ETag, and 304s
+//   carry the same Vary headers as full responses.
+public class ETags {
+
+    private static final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    // Returns the versions of the given data files, noticing external edits
+    public static String getFileVersions(String... filenames) {
+        return Stream.of(filenames)
+            .map(filename -> checkFileVersion(filename) + "")
+            .collect(Collectors.joining("."));
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        return ifNoneMatch != null
+            && Arrays.stream(ifNoneMatch.split(","))
+                     .map(String::trim)
+                     .anyMatch(candidate -> candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag));
+    }
+
+    // Adds requestHeader to the Vary header of res, unless it is already there
+    public static void addVary(Response res, String requestHeader) {
+        if (!res.raw().getHeaders("Vary").contains(requestHeader)) {
+            res.header("Vary", requestHeader);
+        }
+    }
+
+    // Wraps route so that its responses carry an ETag made from the
+    // version that getVersion returns for the request and the content
+    // coding. getVersion must add the request headers it depends on to
+    // Vary (see addVary).
+    public static Route withETag(BiFunction<Request, Response, String> getVersion, Route route) {
+        return (req, res) -> {
+            String encoding = Compression.chooseEncoding(req.headers("Accept-Encoding"));
+            addVary(res, "Accept-Encoding");
+            String etag = "\"" + epoch + "-" + getVersion.apply(req, res) + (encoding != null ? "-" + encoding : "") + "\"";
+            res.header("ETag", etag);
+            // Let browsers keep responses, but have them check back every time
+            res.header("Cache-Control", "no-cache");
+            if (matches(req.headers("If-None-Match"), etag)) {
+                res.status(304);
+                return "";
+            } else {
+                return route.handle(req, res);
+            }
+        };
+    }
+
+}
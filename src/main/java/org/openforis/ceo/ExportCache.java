@@ -0,0 +1,120 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import static org.openforis.ceo.JsonUtils.expandResourcePath;
+
+// Keeps the latest export of each project in /public/downloads, so that
+// exporting a project again without any changes in between returns the
+// existing file instead of regenerating it.
+//
+// - An export is tagged with the version of plot-data-<id>.json (bumped
+//   by every plot mutation) and the project's entry in project-list.json
+//   it was made from. It is reused while both are unchanged.
+// - Exports of the same project are serialized, so when two requests
+//   arrive together the second one waits for and reuses the first one's
+//   file. Different projects export in parallel.
+// - The export files in /public/downloads are kept within
+//   ceo.downloads.maxBytes (default 1 GB). When a new export exceeds it,
+//   the least recently requested files are deleted first. Files left
+//   over from an earlier run count as least recently used.
+public class ExportCache {
+
+    private static class Artifact {
+        final long dataVersion;
+        final String projectJson;
+        final String filename;
+
+        Artifact(long dataVersion, String projectJson, String filename) {
+            this.dataVersion = dataVersion;
+            this.projectJson = projectJson;
+            this.filename = filename;
+        }
+    }
+
+    private static final long maxBytes = Long.getLong("ceo.downloads.maxBytes", 1024L * 1024L * 1024L);
+    private static final Map<String, Artifact> artifacts = new ConcurrentHashMap<String, Artifact>();
+    private static final Map<String, Object> exportLocks = new ConcurrentHashMap<String, Object>();
+    private static final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private static long currentBytes = 0;
+    private static File downloadsDir = null;
+
+    private static boolean isExportFile(String filename) {
+        return filename.startsWith("ceo-") && filename.endsWith(".csv");
+    }
+
+    // NOTE: Must be called while synchronized on files.
+    private static File getDownloadsDir() {
+        if (downloadsDir == null) {
+            downloadsDir = new File(expandResourcePath("/public/downloads/"));
+            File[] oldFiles = downloadsDir.listFiles((dir, name) -> isExportFile(name));
+            Arrays.stream(oldFiles == null ? new File[]{} : oldFiles)
+                .sorted(Comparator.comparingLong(File::lastModified))
+                .forEach(file -> {
+                        files.put(file.getName(), file.length());
+                        currentBytes += file.length();
+                    });
+        }
+        return downloadsDir;
+    }
+
+    // Marks filename as recently used. Returns false if it has been evicted.
+    private static boolean touch(String filename) {
+        synchronized (files) {
+            return files.get(filename) != null && new File(getDownloadsDir(), filename).exists();
+        }
+    }
+
+    // Records the newly written filename and evicts other files until the downloads fit into maxBytes
+    private static void add(String filename) {
+        synchronized (files) {
+            long length = new File(getDownloadsDir(), filename).length();
+            Long previousLength = files.put(filename, length);
+            currentBytes += length - (previousLength == null ? 0 : previousLength);
+            Iterator<Map.Entry<String, Long>> leastRecentlyUsed = files.entrySet().iterator();
+            while (currentBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+                Map.Entry<String, Long> eldest = leastRecentlyUsed.next();
+                if (!eldest.getKey().equals(filename)) {
+                    new File(getDownloadsDir(), eldest.getKey()).delete();
+                    currentBytes -= eldest.getValue();
+                    leastRecentlyUsed.remove();
+                }
+            }
+        }
+    }
+
+    // Returns the name of a file in /public/downloads which holds the
+    // current export of project. If there is none, nameExport is called
+    // with the project's data version to name a new file, and writeExport
+    // to write it.
+    public static String getExport(JsonObject project, LongFunction<String> nameExport, Consumer<String> writeExport) {
+        String projectId = project.get("id").getAsString();
+        synchronized (exportLocks.computeIfAbsent(projectId, id -> new Object())) {
+            // Read the version first, so a concurrent mutation can only make the export look stale
+            long dataVersion = PlotColumnStore.getPlotDataVersion(projectId);
+            String projectJson = project.toString();
+            Artifact artifact = artifacts.get(projectId);
+            if (artifact != null
+                && artifact.dataVersion == dataVersion
+                && artifact.projectJson.equals(projectJson)
+                && touch(artifact.filename)) {
+                return artifact.filename;
+            } else {
+                String filename = nameExport.apply(dataVersion);
+                writeExport.accept(filename);
+                add(filename);
+                artifacts.put(projectId, new Artifact(dataVersion, projectJson, filename));
+                return filename;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.openforis.ceo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+// One read/write lock per JSON data file.
+//
+// Any read-modify-write of a data file must hold its write lock for the
+// whole sequence (mapJsonFile and filterJsonFile do this themselves).
+// Reads through JsonUtils take the read lock, so they never observe a
+// half-finished update. Writes to different files (e.g. plot-data-3.json
+// and plot-data-12.json) don't block each other.
+//
+// NOTE: A thread holding a write lock may also take the read lock on the
+// same file, but not the other way around.
+public class FileLocks {
+
+    private static final Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+
+    private static ReentrantReadWriteLock getLock(String filename) {
+        return locks.computeIfAbsent(filename, f -> new ReentrantReadWriteLock());
+    }
+
+    private static <T> T withLock(Lock lock, Supplier<T> action) {
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static <T> T withReadLock(String filename, Supplier<T> action) {
+        return withLock(getLock(filename).readLock(), action);
+    }
+
+    public static <T> T withWriteLock(String filename, Supplier<T> action) {
+        return withLock(getLock(filename).writeLock(), action);
+    }
+
+    public static void runWithWriteLock(String filename, Runnable action) {
+        withWriteLock(filename, () -> { action.run(); return null; });
+    }
+
+    public static boolean holdsWriteLock(String filename) {
+        return getLock(filename).isWriteLockedByCurrentThread();
+    }
+
+}
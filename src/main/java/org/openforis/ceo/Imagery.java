@@ -12,17 +12,18 @@ import static org.openforis.ceo.JsonUtils.getNextId;
 import static org.openforis.ceo.JsonUtils.mapJsonFile;
 import static org.openforis.ceo.JsonUtils.parseJson;
 import static org.openforis.ceo.JsonUtils.readJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
 import static org.openforis.ceo.JsonUtils.writeJsonFile;
 
 public class Imagery {
 
     public static String getAllImagery(Request req, Response res) {
         String institutionId = req.queryParams("institutionId");
-        JsonArray imagery = readJsonFile("imagery-list.json").getAsJsonArray();
+        JsonArray imagery = readJsonSnapshot("imagery-list.json").getAsJsonArray();
         if (institutionId.equals("")) {
             return imagery.toString();
         } else {
-            JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
+            JsonArray institutions = readJsonSnapshot("institution-list.json").getAsJsonArray();
             Optional<JsonObject> matchingInstitution = findInJsonArray(institutions, institution -> institution.get("id").getAsString().equals(institutionId));
             if (matchingInstitution.isPresent()) {
                 JsonObject institution = matchingInstitution.get();
@@ -34,7 +35,7 @@ public class Imagery {
         }
     }
 
-    public static synchronized String deleteInstitutionImagery(Request req, Response res) {
+    public static String deleteInstitutionImagery(Request req, Response res) {
         JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
         String institutionId = jsonInputs.get("institutionId").getAsString();
         JsonElement imageryId = jsonInputs.get("imageryId");
@@ -55,7 +56,7 @@ public class Imagery {
         return "";
     }
 
-    public static synchronized String addInstitutionImagery(Request req, Response res) {
+    public static String addInstitutionImagery(Request req, Response res) {
         try {
             JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
             String institutionId = jsonInputs.get("institutionId").getAsString();
@@ -71,29 +72,32 @@ public class Imagery {
             // Add layerName to geoserverParams
             geoserverParams.addProperty("LAYERS", layerName);
 
-            // Read in the existing imagery list
-            JsonArray imagery = readJsonFile("imagery-list.json").getAsJsonArray();
-
-            // Generate a new imagery id
-            int newImageryId = getNextId(imagery);
-
             // Create a new source configuration for this imagery
             JsonObject sourceConfig = new JsonObject();
             sourceConfig.addProperty("type", "GeoServer");
             sourceConfig.addProperty("geoserver_url", geoserverURL);
             sourceConfig.add("geoserver_params", geoserverParams);
 
-            // Create a new imagery object
-            JsonObject newImagery = new JsonObject();
-            newImagery.addProperty("id", newImageryId);
-            newImagery.addProperty("title", imageryTitle);
-            newImagery.addProperty("attribution", imageryAttribution);
-            newImagery.add("extent", null);
-            newImagery.add("source_config", sourceConfig);
-
-            // Write the new entry to imagery-list.json
-            imagery.add(newImagery);
-            writeJsonFile("imagery-list.json", imagery);
+            int newImageryId = FileLocks.withWriteLock("imagery-list.json", () -> {
+                    // Read in the existing imagery list
+                    JsonArray imagery = readJsonFile("imagery-list.json").getAsJsonArray();
+
+                    // Generate a new imagery id
+                    int nextImageryId = getNextId(imagery);
+
+                    // Create a new imagery object
+                    JsonObject newImagery = new JsonObject();
+                    newImagery.addProperty("id", nextImageryId);
+                    newImagery.addProperty("title", imageryTitle);
+                    newImagery.addProperty("attribution", imageryAttribution);
+                    newImagery.add("extent", null);
+                    newImagery.add("source_config", sourceConfig);
+
+                    // Write the new entry to imagery-list.json
+                    imagery.add(newImagery);
+                    writeJsonFile("imagery-list.json", imagery);
+                    return nextImageryId;
+                });
 
             // Add newImageryId to the selected institution's imagery list
             mapJsonFile("institution-list.json",
@@ -3,34 +3,46 @@ package org.openforis.ceo;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Optional;
+import java.util.stream.Stream;
 import javax.servlet.MultipartConfigElement;
 import spark.Request;
 import spark.Response;
 import static org.openforis.ceo.JsonUtils.expandResourcePath;
-import static org.openforis.ceo.JsonUtils.filterJsonArray;
 import static org.openforis.ceo.JsonUtils.findInJsonArray;
 import static org.openforis.ceo.JsonUtils.getNextId;
+import static org.openforis.ceo.JsonUtils.intoJsonArray;
 import static org.openforis.ceo.JsonUtils.mapJsonFile;
 import static org.openforis.ceo.JsonUtils.readJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.toStream;
 import static org.openforis.ceo.JsonUtils.writeJsonFile;
 import static org.openforis.ceo.PartUtils.partToString;
 import static org.openforis.ceo.PartUtils.writeFilePart;
 
 public class Institutions {
 
+    // Accepts the fields, limit and after parameters of ListQuery
     public static String getAllInstitutions(Request req, Response res) {
-        JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
+        ListQuery query = ListQuery.fromRequest(req);
+        JsonArray institutions = readJsonSnapshot("institution-list.json").getAsJsonArray();
         String[] hiddenInstitutions = new String[]{"All Users", "Administrators"};
-        JsonArray visibleInstitutions = filterJsonArray(institutions, institution ->
-                                                        institution.get("archived").getAsBoolean() == false
-                                                        && !Arrays.asList(hiddenInstitutions).contains(institution.get("name").getAsString()));
-        return visibleInstitutions.toString();
+        Stream<JsonObject> visibleInstitutions = toStream(institutions)
+            .filter(institution -> institution.get("archived").getAsBoolean() == false
+                    && !Arrays.asList(hiddenInstitutions).contains(institution.get("name").getAsString()))
+            .sorted(Comparator.comparingInt(institution -> institution.get("id").getAsInt()));
+        JsonArray page = query.page(visibleInstitutions, institution -> institution.get("id").getAsInt())
+            .stream()
+            .map(query::project)
+            .collect(intoJsonArray);
+        query.setNextCursor(res);
+        return page.toString();
     }
 
     private static Optional<JsonObject> getInstitutionById(int institutionId) {
-        JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
+        JsonArray institutions = readJsonSnapshot("institution-list.json").getAsJsonArray();
         return findInJsonArray(institutions, institution -> institution.get("id").getAsInt() == institutionId);
     }
 
@@ -50,7 +62,7 @@ public class Institutions {
         }
     }
 
-    public static synchronized String updateInstitution(Request req, Response res) {
+    public static String updateInstitution(Request req, Response res) {
         try {
             String institutionId = req.params(":id");
 
@@ -65,51 +77,52 @@ public class Institutions {
 
             if (institutionId.equals("0")) {
                 // NOTE: This branch creates a new institution
-
-                // Read in the existing institution list
-                JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
-
-                // Generate a new institution id
-                int newInstitutionId = getNextId(institutions);
-
-                // Upload the logo image if one was provided
-                String logoFileName = writeFilePart(req, "institution-logo", expandResourcePath("/public/img/institution-logos"), "institution-" + newInstitutionId);
-                String logoPath = logoFileName != null ? "img/institution-logos/" + logoFileName : "";
-
-                JsonArray members = new JsonArray();
-                JsonArray admins = new JsonArray();
-                JsonArray pending = new JsonArray();
-                JsonArray imagery = new JsonArray();
-                members.add(1); // adding the admin user by default
-                admins.add(1); // adding the admin user by default
-                if (userid != 1) {
-                    members.add(userid);
-                    admins.add(userid);
-                }
-                // FIXME: Remove this code once the Institution page supports adding new imagery entries
-                imagery.add(1);
-                imagery.add(2);
-                imagery.add(3);
-                imagery.add(4);
-                imagery.add(5);
-                imagery.add(6);
-
-                JsonObject newInstitution = new JsonObject();
-                newInstitution.addProperty("id", newInstitutionId);
-                newInstitution.addProperty("name", name);
-                newInstitution.addProperty("logo", logoPath);
-                newInstitution.addProperty("url", url);
-                newInstitution.addProperty("description", description);
-                newInstitution.addProperty("archived", false);
-                newInstitution.add("members", members);
-                newInstitution.add("admins", admins);
-                newInstitution.add("pending", pending);
-                newInstitution.add("imagery", imagery);
-
-                institutions.add(newInstitution);
-                writeJsonFile("institution-list.json", institutions);
-
-                return newInstitution.toString();
+                return FileLocks.withWriteLock("institution-list.json", () -> {
+                        // Read in the existing institution list
+                        JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
+
+                        // Generate a new institution id
+                        int newInstitutionId = getNextId(institutions);
+
+                        // Upload the logo image if one was provided
+                        String logoFileName = writeFilePart(req, "institution-logo", expandResourcePath("/public/img/institution-logos"), "institution-" + newInstitutionId);
+                        String logoPath = logoFileName != null ? "img/institution-logos/" + logoFileName : "";
+
+                        JsonArray members = new JsonArray();
+                        JsonArray admins = new JsonArray();
+                        JsonArray pending = new JsonArray();
+                        JsonArray imagery = new JsonArray();
+                        members.add(1); // adding the admin user by default
+                        admins.add(1); // adding the admin user by default
+                        if (userid != 1) {
+                            members.add(userid);
+                            admins.add(userid);
+                        }
+                        // FIXME: Remove this code once the Institution page supports adding new imagery entries
+                        imagery.add(1);
+                        imagery.add(2);
+                        imagery.add(3);
+                        imagery.add(4);
+                        imagery.add(5);
+                        imagery.add(6);
+
+                        JsonObject newInstitution = new JsonObject();
+                        newInstitution.addProperty("id", newInstitutionId);
+                        newInstitution.addProperty("name", name);
+                        newInstitution.addProperty("logo", logoPath);
+                        newInstitution.addProperty("url", url);
+                        newInstitution.addProperty("description", description);
+                        newInstitution.addProperty("archived", false);
+                        newInstitution.add("members", members);
+                        newInstitution.add("admins", admins);
+                        newInstitution.add("pending", pending);
+                        newInstitution.add("imagery", imagery);
+
+                        institutions.add(newInstitution);
+                        writeJsonFile("institution-list.json", institutions);
+
+                        return newInstitution.toString();
+                    });
             } else {
                 // NOTE: This branch edits an existing institution
 
@@ -141,7 +154,7 @@ public class Institutions {
         }
     }
 
-    public static synchronized String archiveInstitution(Request req, Response res) {
+    public static String archiveInstitution(Request req, Response res) {
         String institutionId = req.params(":id");
 
         mapJsonFile("institution-list.json",
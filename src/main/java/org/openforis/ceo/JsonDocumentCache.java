@@ -0,0 +1,310 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Holds the parsed contents of the JSON data files in memory so that
+// repeated reads don't have to re-parse them from disk.
+//
+// - Entries are keyed by filename and store the file's mtime and size
+//   at load time. A read that finds a different mtime or size on disk
+//   treats the entry as stale and reloads it.
+// - The total size (in bytes on disk) of all cached files is bounded
+//   by maxBytes. When it is exceeded, the least recently used entries
+//   are evicted first. Dirty entries (see below) count with the last
+//   known size of their file until they have been written, since
+//   serializing a document just to weigh it costs as much as writing it.
+// - Every filename has a version number which is bumped whenever its
+//   contents change (through a write or an external edit). Versions
+//   survive eviction, so they can be used as cache keys elsewhere.
+// - Documents written with putDirty are newer than their files until
+//   WriteBehind has written them (see flushed). Such dirty entries are
+//   never evicted or reloaded from disk, so an external edit made in
+//   the meantime is overwritten.
+//
+// NOTE: The cached documents are shared between threads and must never
+// be mutated. JsonUtils.readJsonFile hands out private copies.
+//
+// The cache size can be set with -Dceo.cache.maxBytes=<bytes>.
+public class JsonDocumentCache {
+
+    private static class Entry {
+        final JsonElement document;
+        final long lastModified;
+        final long length;
+        final boolean dirty;
+        // Bytes counted against maxBytes
+        final long weight;
+
+        Entry(JsonElement document, long lastModified, long length, boolean dirty, long weight) {
+            this.document = document;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.dirty = dirty;
+            this.weight = weight;
+        }
+
+        Entry(JsonElement document, long lastModified, long length) {
+            this(document, lastModified, length, false, Math.max(0L, length));
+        }
+    }
+
+    private static class FileState {
+        long version;
+        long lastModified;
+        long length;
+    }
+
+    private static final long maxBytes = Long.getLong("ceo.cache.maxBytes", 256L * 1024L * 1024L);
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private static final Map<String, FileState> fileStates = new ConcurrentHashMap<String, FileState>();
+    private static long currentBytes = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong reloads = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    // Returns {lastModified (ns), length} for file or {-1, -1} if it doesn't exist
+    public static long[] statFile(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return new long[]{attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), attrs.size()};
+        } catch (IOException e) {
+            return new long[]{-1L, -1L};
+        }
+    }
+
+    // Returns the cached document for filename, calling loader to parse
+    // file if there is no entry yet or the file was modified on disk.
+    public static JsonElement get(String filename, File file, Function<File, JsonElement> loader) {
+        long[] stat = statFile(file);
+        synchronized (entries) {
+            Entry entry = entries.get(filename);
+            if (entry != null && (entry.dirty || entry.lastModified == stat[0] && entry.length == stat[1])) {
+                hits.incrementAndGet();
+                return entry.document;
+            } else if (entry != null) {
+                reloads.incrementAndGet();
+                remove(filename);
+            } else {
+                misses.incrementAndGet();
+            }
+        }
+        // Parse outside of the monitor so that other files can still be served
+        JsonElement document = loader.apply(file);
+        synchronized (entries) {
+            if (entries.containsKey(filename)) {
+                // Another thread loaded or wrote this file in the meantime
+                return entries.get(filename).document;
+            }
+            FileState state = getFileState(filename);
+            if (state.lastModified != stat[0] || state.length != stat[1]) {
+                state.version += 1;
+                state.lastModified = stat[0];
+                state.length = stat[1];
+            }
+            insert(filename, new Entry(document, stat[0], stat[1]));
+        }
+        return document;
+    }
+
+    // Replaces the cached document for filename after it has been written to file
+    public static void put(String filename, File file, JsonElement document) {
+        long[] stat = statFile(file);
+        put(filename, new Entry(document, stat[0], stat[1]));
+    }
+
+    // Replaces the cached document for filename before it is written to
+    // file. bytes is an estimate of its serialized size (see
+    // getLastKnownSize), which flushed corrects.
+    public static void putDirty(String filename, File file, JsonElement document, long bytes) {
+        long[] stat = statFile(file);
+        put(filename, new Entry(document, stat[0], stat[1], true, bytes));
+    }
+
+    private static void put(String filename, Entry entry) {
+        synchronized (entries) {
+            FileState state = getFileState(filename);
+            state.version += 1;
+            state.lastModified = entry.lastModified;
+            state.length = entry.length;
+            remove(filename);
+            insert(filename, entry);
+        }
+    }
+
+    // Records that document, written with putDirty, is now in file. The
+    // entry becomes clean unless a newer document was put in the meantime.
+    public static void flushed(String filename, File file, JsonElement document) {
+        long[] stat = statFile(file);
+        synchronized (entries) {
+            FileState state = getFileState(filename);
+            state.lastModified = stat[0];
+            state.length = stat[1];
+            Entry entry = entries.get(filename);
+            if (entry != null) {
+                remove(filename);
+                // A newer dirty document is weighed like the one just written
+                insert(filename, entry.dirty && entry.document != document
+                                 ? new Entry(entry.document, stat[0], stat[1], true, Math.max(0L, stat[1]))
+                                 : new Entry(entry.document, stat[0], stat[1]));
+            }
+        }
+    }
+
+    // Returns the last known size of filename's serialized document: the
+    // weight of its entry, or else the length of file (0 if it doesn't exist)
+    public static long getLastKnownSize(String filename, File file) {
+        synchronized (entries) {
+            Entry entry = entries.get(filename);
+            if (entry != null) {
+                return entry.weight;
+            }
+        }
+        return Math.max(0L, statFile(file)[1]);
+    }
+
+    // Records that file was rewritten from the cached document without
+    // changing its contents, so the entry stays valid.
+    public static void refresh(String filename, File file) {
+        long[] stat = statFile(file);
+        synchronized (entries) {
+            FileState state = getFileState(filename);
+            state.lastModified = stat[0];
+            state.length = stat[1];
+            Entry entry = entries.get(filename);
+            if (entry != null) {
+                remove(filename);
+                insert(filename, entry.dirty
+                                 ? new Entry(entry.document, stat[0], stat[1], true, entry.weight)
+                                 : new Entry(entry.document, stat[0], stat[1]));
+            }
+        }
+    }
+
+    // Lets data derived from file elsewhere (and saved with file's stat)
+    // be tied to its version without parsing file. Returns the version of
+    // file if it has the given stat and the cache hasn't seen a different
+    // one for it, or -1 otherwise.
+    public static long adoptVersion(String filename, File file, long lastModified, long length) {
+        long[] stat = statFile(file);
+        synchronized (entries) {
+            FileState state = getFileState(filename);
+            boolean unseen = state.version == 0 && state.lastModified == 0 && state.length == 0;
+            if (stat[0] != lastModified || stat[1] != length) {
+                return -1L;
+            } else if (unseen) {
+                state.lastModified = lastModified;
+                state.length = length;
+                return state.version;
+            } else if (state.lastModified == lastModified && state.length == length) {
+                return state.version;
+            } else {
+                return -1L;
+            }
+        }
+    }
+
+    // Replaces the cached document for filename with one of the same
+    // contents (e.g. with changes held elsewhere folded in), keeping its
+    // version. Does nothing if filename isn't cached.
+    public static void replace(String filename, JsonElement document) {
+        synchronized (entries) {
+            Entry entry = entries.get(filename);
+            if (entry != null) {
+                remove(filename);
+                insert(filename, new Entry(document, entry.lastModified, entry.length, entry.dirty, entry.weight));
+            }
+        }
+    }
+
+    // Bumps the version of filename for a change that isn't in the cached
+    // document (see PlotMutationLog)
+    public static void touch(String filename) {
+        synchronized (entries) {
+            getFileState(filename).version += 1;
+        }
+    }
+
+    public static void invalidate(String filename) {
+        synchronized (entries) {
+            remove(filename);
+            getFileState(filename).version += 1;
+        }
+    }
+
+    // Like getVersion, but first checks file on disk (without parsing
+    // it), so that an external edit changes the version right away.
+    // While the cached document is dirty, the file is ignored.
+    public static long checkVersion(String filename, File file) {
+        long[] stat = statFile(file);
+        synchronized (entries) {
+            FileState state = getFileState(filename);
+            Entry entry = entries.get(filename);
+            if ((entry == null || !entry.dirty) && (state.lastModified != stat[0] || state.length != stat[1])) {
+                state.version += 1;
+                state.lastModified = stat[0];
+                state.length = stat[1];
+            }
+            return state.version;
+        }
+    }
+
+    public static long getVersion(String filename) {
+        synchronized (entries) {
+            return getFileState(filename).version;
+        }
+    }
+
+    private static FileState getFileState(String filename) {
+        return fileStates.computeIfAbsent(filename, f -> new FileState());
+    }
+
+    private static void insert(String filename, Entry entry) {
+        entries.put(filename, entry);
+        currentBytes += entry.weight;
+        Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Entry> eldest = leastRecentlyUsed.next();
+            if (!eldest.getKey().equals(filename) && !eldest.getValue().dirty) {
+                currentBytes -= eldest.getValue().weight;
+                leastRecentlyUsed.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static void remove(String filename) {
+        Entry entry = entries.remove(filename);
+        if (entry != null) {
+            currentBytes -= entry.weight;
+        }
+    }
+
+    public static JsonObject getStats() {
+        synchronized (entries) {
+            JsonObject stats = new JsonObject();
+            stats.addProperty("hits", hits.get());
+            stats.addProperty("misses", misses.get());
+            stats.addProperty("reloads", reloads.get());
+            stats.addProperty("evictions", evictions.get());
+            stats.addProperty("entries", entries.size());
+            stats.addProperty("cachedBytes", currentBytes);
+            stats.addProperty("maxBytes", maxBytes);
+            return stats;
+        }
+    }
+
+}
@@ -1,16 +1,25 @@
 package org.openforis.ceo;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -34,24 +43,238 @@ public class JsonUtils {
         return (new JsonParser()).parse(jsonString);
     }
 
-    public static JsonElement readJsonFile(String filename) {
-        String jsonDataDir = expandResourcePath("/json/");
-        try (FileReader fileReader = new FileReader(new File(jsonDataDir, filename))) {
-            return (new JsonParser()).parse(fileReader);
+    // Same output as JsonElement.toString(), but written incrementally
+    private static final Gson jsonPrinter = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+
+    private static String jsonDataDir = null;
+
+    public static File getJsonFile(String filename) {
+        if (jsonDataDir == null) {
+            jsonDataDir = expandResourcePath("/json/");
+        }
+        return new File(jsonDataDir, filename);
+    }
+
+    public static JsonObject getCacheStats() {
+        return JsonDocumentCache.getStats();
+    }
+
+    // Returns a number which changes whenever the contents of filename change
+    public static long getFileVersion(String filename) {
+        return JsonDocumentCache.getVersion(filename);
+    }
+
+    // Like getFileVersion, but notices external edits of filename without reading it
+    // NOTE: Not for plot files, whose snapshots are rewritten without changing their contents.
+    public static long checkFileVersion(String filename) {
+        return JsonDocumentCache.checkVersion(filename, getJsonFile(filename));
+    }
+
+    // Returns {lastModified (ns), length} of filename on disk or {-1, -1} if it doesn't exist
+    public static long[] getFileStat(String filename) {
+        return JsonDocumentCache.statFile(getJsonFile(filename));
+    }
+
+    // Returns the version of filename if it still has the given stat on
+    // disk, or -1 if it has changed since (see JsonDocumentCache.adoptVersion)
+    public static long adoptFileVersion(String filename, long lastModified, long length) {
+        return JsonDocumentCache.adoptVersion(filename, getJsonFile(filename), lastModified, length);
+    }
+
+    public static JsonElement parseJsonFile(File file) {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return (new JsonParser()).parse(reader);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    // Note: The returned element is shared with other threads and must not be modified.
+    //       Use readJsonFile to get a copy that can be changed.
+    public static JsonElement readJsonSnapshot(String filename) {
+        return FileLocks.withReadLock(filename,
+                                      () -> JsonDocumentCache.get(filename,
+                                                                  getJsonFile(filename),
+                                                                  PlotMutationLog.isPlotFile(filename)
+                                                                  ? PlotMutationLog::loadPlotFile
+                                                                  : JsonUtils::parseJsonFile));
+    }
+
+    public static JsonElement readJsonFile(String filename) {
+        return deepCopy(readJsonSnapshot(filename));
+    }
+
     public static void writeJsonFile(String filename, JsonElement data) {
-        String jsonDataDir = expandResourcePath("/json/");
-        try (FileWriter fileWriter = new FileWriter(new File(jsonDataDir, filename))) {
-            fileWriter.write(data.toString());
+        FileLocks.runWithWriteLock(filename, () -> replaceJsonFile(filename, deepCopy(data)));
+    }
+
+    // Writes data to a temporary file and renames it over file, so
+    // readers never see a partially written file.
+    static void writeJsonToDisk(File file, JsonElement data) {
+        Path tempFile = writeJsonToTempFile(file, data);
+        try {
+            moveOverFile(tempFile, file);
+        } finally {
+            deleteTempFile(tempFile);
+        }
+    }
+
+    // Writes data to a new temporary file next to file. Every call gets its
+    // own file, so concurrent writers never write into each other's.
+    private static Path writeJsonToTempFile(File file, JsonElement data) {
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(file.getParentFile().toPath(), "." + file.getName() + ".", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                jsonPrinter.toJson(data, writer);
+            }
+            return tempFile;
+        } catch (Exception e) {
+            deleteTempFile(tempFile);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void moveOverFile(Path tempFile, File file) {
+        try {
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    // Does nothing if tempFile is null or has already been moved
+    static void deleteTempFile(Path tempFile) {
+        try {
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Writes filename through writeContents without building the whole
+    // document in memory first. The contents go to a temporary file,
+    // which replaces filename once writeContents has returned.
+    public static void streamJsonFile(String filename, Consumer<JsonWriter> writeContents) {
+        File file = getJsonFile(filename);
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(file.getParentFile().toPath(), "." + file.getName() + ".", ".tmp");
+            try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))) {
+                writeContents.accept(writer);
+            }
+            Path completeFile = tempFile;
+            FileLocks.runWithWriteLock(filename, () -> {
+                    try {
+                        Files.move(completeFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    JsonDocumentCache.invalidate(filename);
+                });
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            deleteTempFile(tempFile);
+        }
+    }
+
+    // Note: The document cache takes ownership of data, so the caller must not modify it afterwards.
+    private static void replaceJsonFile(String filename, JsonElement data) {
+        File file = getJsonFile(filename);
+        if (WriteBehind.isDeferred(filename)) {
+            long bytes = JsonDocumentCache.getLastKnownSize(filename, file);
+            JsonDocumentCache.putDirty(filename, file, data, bytes);
+            WriteBehind.enqueue(filename, data, bytes);
+        } else {
+            writeJsonToDisk(file, data);
+            JsonDocumentCache.put(filename, file, data);
+        }
+    }
+
+    // Returns once the latest contents of filename are on disk, for
+    // callers that must not continue before a write is durable (see WriteBehind)
+    public static void syncJsonFile(String filename) {
+        WriteBehind.flush(filename);
+    }
+
+    // Records a change to filename that is kept outside of its cached
+    // document (see PlotMutationLog), so that getFileVersion moves on.
+    // The caller must hold the file's write lock and is responsible for
+    // making the change durable.
+    public static void touchJsonSnapshot(String filename) {
+        if (!FileLocks.holdsWriteLock(filename)) {
+            throw new IllegalStateException("Write lock for " + filename + " is not held.");
+        }
+        JsonDocumentCache.touch(filename);
+    }
+
+    // Replaces the cached document for filename with data, which must have
+    // the same contents, without writing it to disk or changing the file's
+    // version. The caller must hold the file's write lock and must not
+    // modify data afterwards.
+    public static void replaceJsonSnapshot(String filename, JsonElement data) {
+        if (!FileLocks.holdsWriteLock(filename)) {
+            throw new IllegalStateException("Write lock for " + filename + " is not held.");
+        }
+        JsonDocumentCache.replace(filename, data);
+    }
+
+    // Writes a snapshot previously returned by readJsonSnapshot to a new
+    // temporary file next to filename and returns it, so that it can be
+    // moved into place with installJsonSnapshot.
+    // NOTE: This doesn't take the file's lock, so that readers and
+    //       PlotMutationLog appends can continue while a large snapshot
+    //       is being written.
+    public static Path writeJsonSnapshot(String filename, JsonElement snapshot) {
+        return writeJsonToTempFile(getJsonFile(filename), snapshot);
+    }
+
+    // Moves tempFile from writeJsonSnapshot over filename if filename
+    // still has the given stat (see getFileStat), i.e. hasn't been
+    // replaced since the snapshot was taken, and returns whether it did.
+    // tempFile is deleted either way. The cached document is left alone,
+    // since it may already be newer than the snapshot. The caller must
+    // hold the file's write lock.
+    public static boolean installJsonSnapshot(String filename, Path tempFile, long[] stat) {
+        if (!FileLocks.holdsWriteLock(filename)) {
+            throw new IllegalStateException("Write lock for " + filename + " is not held.");
+        }
+        File file = getJsonFile(filename);
+        try {
+            if (!Arrays.equals(JsonDocumentCache.statFile(file), stat)) {
+                return false;
+            }
+            moveOverFile(tempFile, file);
+            JsonDocumentCache.refresh(filename, file);
+            return true;
+        } finally {
+            deleteTempFile(tempFile);
+        }
+    }
+
+    // Gson 2.8.0 doesn't expose JsonElement.deepCopy(), so we do it here.
+    public static JsonElement deepCopy(JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject copy = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                copy.add(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        } else if (element.isJsonArray()) {
+            JsonArray copy = new JsonArray();
+            for (JsonElement child : element.getAsJsonArray()) {
+                copy.add(deepCopy(child));
+            }
+            return copy;
+        } else {
+            // JsonPrimitive and JsonNull are immutable
+            return element;
+        }
+    }
+
     // Note: The JSON array may contain elements of any type.
     public static Stream<JsonElement> toElementStream(JsonArray array) {
         return StreamSupport.stream(array.spliterator(), false);
@@ -99,16 +322,20 @@ public class JsonUtils {
 
     // Note: The JSON file must contain an array of objects.
     public static void mapJsonFile(String filename, Function<JsonObject, JsonObject> mapper) {
-        JsonArray array = readJsonFile(filename).getAsJsonArray();
-        JsonArray updatedArray = mapJsonArray(array, mapper);
-        writeJsonFile(filename, updatedArray);
+        FileLocks.runWithWriteLock(filename, () -> {
+                JsonArray array = readJsonFile(filename).getAsJsonArray();
+                JsonArray updatedArray = mapJsonArray(array, mapper);
+                replaceJsonFile(filename, updatedArray);
+            });
     }
 
     // Note: The JSON file must contain an array of objects.
     public static void filterJsonFile(String filename, Predicate<JsonObject> predicate) {
-        JsonArray array = readJsonFile(filename).getAsJsonArray();
-        JsonArray updatedArray = filterJsonArray(array, predicate);
-        writeJsonFile(filename, updatedArray);
+        FileLocks.runWithWriteLock(filename, () -> {
+                JsonArray array = readJsonFile(filename).getAsJsonArray();
+                JsonArray updatedArray = filterJsonArray(array, predicate);
+                replaceJsonFile(filename, updatedArray);
+            });
     }
 
 }
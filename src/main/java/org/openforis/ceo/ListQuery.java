@@ -0,0 +1,88 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import spark.Request;
+import spark.Response;
+
+// The query parameters of the list routes (get-all-projects,
+// get-all-users and get-all-institutions):
+//
+// - fields=a,b,c returns only these fields of each item (all if absent).
+// - limit=n returns at most n items, in the order of their ids.
+// - after=id continues a listing after the item with that id. When a
+//   page is cut short by limit, the response's X-Next-Cursor header
+//   holds the value of after for the next page.
+//
+// Items are ordered by id, which is also the order of the JSON files,
+// since new items are appended with the next higher id. Ids don't
+// change, so a listing continued after an item neither repeats nor
+// skips items when others are added in between.
+public class ListQuery {
+
+    public final Set<String> fields;
+    public final int afterId;
+    public final int limit;
+    private String nextCursor = null;
+
+    private ListQuery(Set<String> fields, int afterId, int limit) {
+        this.fields = fields;
+        this.afterId = afterId;
+        this.limit = limit;
+    }
+
+    public static ListQuery fromRequest(Request req) {
+        String fields = req.queryParams("fields");
+        String after = req.queryParams("after");
+        String limit = req.queryParams("limit");
+        return new ListQuery(fields == null || fields.equals("")
+                             ? null
+                             : new HashSet<String>(Arrays.asList(fields.split(","))),
+                             after == null || after.equals("") ? Integer.MIN_VALUE : Integer.parseInt(after),
+                             limit == null || limit.equals("") ? Integer.MAX_VALUE : Math.max(1, Integer.parseInt(limit)));
+    }
+
+    public boolean includes(String field) {
+        return fields == null || fields.contains(field);
+    }
+
+    // Returns item itself if all fields are wanted, or else a copy with only the wanted ones
+    public JsonObject project(JsonObject item) {
+        if (fields == null) {
+            return item;
+        } else {
+            JsonObject projection = new JsonObject();
+            item.entrySet().stream()
+                .filter(field -> fields.contains(field.getKey()))
+                .forEach(field -> projection.add(field.getKey(), field.getValue()));
+            return projection;
+        }
+    }
+
+    // Returns the page of items, which must be ordered by their ids, and
+    // remembers where the next page starts (see setNextCursor)
+    public <T> List<T> page(Stream<T> items, ToIntFunction<T> getId) {
+        List<T> page = items
+            .filter(item -> getId.applyAsInt(item) > afterId)
+            .limit(limit == Integer.MAX_VALUE ? limit : limit + 1L)
+            .collect(Collectors.toList());
+        if (page.size() > limit) {
+            page = page.subList(0, limit);
+            nextCursor = Integer.toString(getId.applyAsInt(page.get(limit - 1)));
+        }
+        return page;
+    }
+
+    public void setNextCursor(Response res) {
+        if (nextCursor != null) {
+            res.header("X-Next-Cursor", nextCursor);
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+// Per-project pyramid of plot clusters for the map, so that a viewport
+// at any zoom level can be drawn from a few hundred aggregates instead
+// of every plot.
+//
+// - Level z divides the Web Mercator world into a grid of 4 * 2^z cells
+//   per axis, i.e. 64 x 64 pixel cells at map zoom z. Each level stores
+//   its non-empty cells in primitive arrays sorted by cell key (column
+//   * gridSize + row), with the plot count, the flagged and analyzed
+//   counts, the centroid and the first plot of each cell.
+// - Levels are added up to maxLevel or until every plot has a cell of
+//   its own, since finer levels would only repeat that level. Higher
+//   zooms use the finest level.
+// - The pyramid is built over PlotSource and tagged with the version of
+//   the plots. PlotMutationLog.updatePlot and PlotColumnStore.updatePlot
+//   adjust the counts of the changed plot's cell on every level. Any
+//   other change causes a rebuild on the next query.
+public class PlotClusterIndex {
+
+    private static final int maxLevel = 18;
+    private static final int cellsPerTile = 4;
+    private static final int finestGridSize = cellsPerTile << maxLevel;
+
+    private static class Level {
+        final int gridSize;
+        final long[] cellKeys;
+        final int[] counts;
+        final int[] flagged;
+        final int[] analyzed;
+        final int[] firstPositions;
+        final float[] centerLons;
+        final float[] centerLats;
+
+        Level(int gridSize, long[] cellKeys) {
+            this.gridSize = gridSize;
+            this.cellKeys = cellKeys;
+            this.counts = new int[cellKeys.length];
+            this.flagged = new int[cellKeys.length];
+            this.analyzed = new int[cellKeys.length];
+            this.firstPositions = new int[cellKeys.length];
+            this.centerLons = new float[cellKeys.length];
+            this.centerLats = new float[cellKeys.length];
+        }
+    }
+
+    private static class Pyramid {
+        long version;
+        final Level[] levels;
+        // Column and row of each plot's cell on a grid of finestGridSize
+        final int[] plotColumns;
+        final int[] plotRows;
+
+        Pyramid(long version, Level[] levels, int[] plotColumns, int[] plotRows) {
+            this.version = version;
+            this.levels = levels;
+            this.plotColumns = plotColumns;
+            this.plotRows = plotRows;
+        }
+    }
+
+    private static final Map<String, Pyramid> pyramids = new ConcurrentHashMap<String, Pyramid>();
+
+    // Web Mercator x and y of lon/lat, scaled to [0, 1) with y pointing south
+    private static double toUnitX(double lon) {
+        return (lon + 180.0) / 360.0;
+    }
+
+    private static double toUnitY(double lat) {
+        double latRadians = Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, lat)));
+        return (1.0 - Math.log(Math.tan(latRadians) + 1.0 / Math.cos(latRadians)) / Math.PI) / 2.0;
+    }
+
+    private static int toCell(double unit, int gridSize) {
+        return (int) Math.max(0, Math.min(gridSize - 1, Math.floor(unit * gridSize)));
+    }
+
+    // -1 = flagged, 1 = analyzed, 0 = unanalyzed
+    private static int getStatus(JsonObject plot) {
+        return plot.get("flagged").getAsBoolean() ? -1 : (plot.get("analyses").getAsInt() > 0 ? 1 : 0);
+    }
+
+    private static void count(Level level, int cell, int status, int sign) {
+        if (status < 0) {
+            level.flagged[cell] += sign;
+        } else if (status > 0) {
+            level.analyzed[cell] += sign;
+        }
+    }
+
+    private static long getCellKey(int gridSize, int column, int row) {
+        return (long) column * gridSize + row;
+    }
+
+    private static Level buildLevel(int z, int[] plotColumns, int[] plotRows, double[] lons, double[] lats, int[] statuses) {
+        int gridSize = cellsPerTile << z;
+        int shift = maxLevel - z;
+        long[] plotKeys = IntStream.range(0, plotColumns.length)
+            .mapToLong(position -> getCellKey(gridSize, plotColumns[position] >> shift, plotRows[position] >> shift))
+            .toArray();
+        Level level = new Level(gridSize, LongStream.of(plotKeys).sorted().distinct().toArray());
+        double[] lonSums = new double[level.cellKeys.length];
+        double[] latSums = new double[level.cellKeys.length];
+        Arrays.fill(level.firstPositions, -1);
+        for (int position = 0; position < plotKeys.length; position++) {
+            int cell = Arrays.binarySearch(level.cellKeys, plotKeys[position]);
+            level.counts[cell] += 1;
+            count(level, cell, statuses[position], 1);
+            lonSums[cell] += lons[position];
+            latSums[cell] += lats[position];
+            if (level.firstPositions[cell] < 0) {
+                level.firstPositions[cell] = position;
+            }
+        }
+        for (int cell = 0; cell < level.cellKeys.length; cell++) {
+            level.centerLons[cell] = (float) (lonSums[cell] / level.counts[cell]);
+            level.centerLats[cell] = (float) (latSums[cell] / level.counts[cell]);
+        }
+        return level;
+    }
+
+    private static Pyramid buildPyramid(PlotSource plots) {
+        int numPlots = plots.size();
+        double[] lons = new double[numPlots];
+        double[] lats = new double[numPlots];
+        int[] statuses = new int[numPlots];
+        IntStream.range(0, numPlots).forEach(position -> {
+                double[] center = plots.getCenter(position);
+                lons[position] = center[0];
+                lats[position] = center[1];
+                statuses[position] = plots.isFlagged(position) ? -1 : (plots.getAnalyses(position) > 0 ? 1 : 0);
+            });
+        int[] plotColumns = Arrays.stream(lons).mapToInt(lon -> toCell(toUnitX(lon), finestGridSize)).toArray();
+        int[] plotRows = Arrays.stream(lats).mapToInt(lat -> toCell(toUnitY(lat), finestGridSize)).toArray();
+
+        Level[] levels = new Level[maxLevel + 1];
+        int z = 0;
+        do {
+            levels[z] = buildLevel(z, plotColumns, plotRows, lons, lats, statuses);
+            z++;
+        } while (z <= maxLevel && levels[z - 1].cellKeys.length < numPlots);
+        return new Pyramid(plots.getVersion(), Arrays.copyOf(levels, z), plotColumns, plotRows);
+    }
+
+    // Returns the clusters of the project's plots in the given box (in
+    // WGS84 lon/lat) at map zoom level zoom: {lon, lat, count, flagged,
+    // analyzed, unanalyzed} per cluster, plus plotId for single plots.
+    public static JsonArray getClusters(String projectId, int zoom, double lonMin, double latMin, double lonMax, double latMax) {
+        return PlotSource.read(projectId, plots -> {
+                Pyramid pyramid = pyramids.compute(projectId,
+                                                   (id, current) -> current != null && current.version == plots.getVersion()
+                                                                    ? current
+                                                                    : buildPyramid(plots));
+                Level level = pyramid.levels[Math.max(0, Math.min(zoom, pyramid.levels.length - 1))];
+                int columnMin = toCell(toUnitX(lonMin), level.gridSize);
+                int columnMax = toCell(toUnitX(lonMax), level.gridSize);
+                int rowMin = toCell(toUnitY(latMax), level.gridSize);
+                int rowMax = toCell(toUnitY(latMin), level.gridSize);
+                JsonArray clusters = new JsonArray();
+                for (int column = columnMin; column <= columnMax; column++) {
+                    // The cells of one column are contiguous in cellKeys
+                    int from = Arrays.binarySearch(level.cellKeys, getCellKey(level.gridSize, column, rowMin));
+                    int to = Arrays.binarySearch(level.cellKeys, getCellKey(level.gridSize, column, rowMax));
+                    from = from < 0 ? -from - 1 : from;
+                    to = to < 0 ? -to - 1 : to + 1;
+                    for (int cell = from; cell < to; cell++) {
+                        JsonObject cluster = new JsonObject();
+                        cluster.addProperty("lon", level.centerLons[cell]);
+                        cluster.addProperty("lat", level.centerLats[cell]);
+                        cluster.addProperty("count", level.counts[cell]);
+                        cluster.addProperty("flagged", level.flagged[cell]);
+                        cluster.addProperty("analyzed", level.analyzed[cell]);
+                        cluster.addProperty("unanalyzed", level.counts[cell] - level.flagged[cell] - level.analyzed[cell]);
+                        if (level.counts[cell] == 1) {
+                            cluster.addProperty("plotId", plots.getPlotId(level.firstPositions[cell]));
+                        }
+                        clusters.add(cluster);
+                    }
+                }
+                return clusters;
+            });
+    }
+
+    // Called by PlotMutationLog.updatePlot and PlotColumnStore.updatePlot,
+    // with the write lock of the plots' file held, after the plot at
+    // position was replaced by updatedPlot (or summaries of them) and the
+    // version went from previousVersion to version
+    public static void plotUpdated(String projectId, long previousVersion, long version, int position, JsonObject plot, JsonObject updatedPlot) {
+        Pyramid pyramid = pyramids.get(projectId);
+        if (pyramid != null && pyramid.version == previousVersion) {
+            int status = getStatus(plot);
+            int updatedStatus = getStatus(updatedPlot);
+            if (status != updatedStatus) {
+                for (int z = 0; z < pyramid.levels.length; z++) {
+                    Level level = pyramid.levels[z];
+                    int shift = maxLevel - z;
+                    int cell = Arrays.binarySearch(level.cellKeys,
+                                                   getCellKey(level.gridSize, pyramid.plotColumns[position] >> shift, pyramid.plotRows[position] >> shift));
+                    count(level, cell, status, -1);
+                    count(level, cell, updatedStatus, 1);
+                }
+            }
+            pyramid.version = version;
+        } else if (pyramid != null) {
+            // Missed an earlier change, so rebuild on next use
+            pyramids.remove(projectId);
+        }
+    }
+
+    // Called when the project's plots are discarded (see ProjectJobs) or converted (see PlotColumnStore)
+    public static void forget(String projectId) {
+        pyramids.remove(projectId);
+    }
+
+}
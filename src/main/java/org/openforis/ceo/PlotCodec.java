@@ -0,0 +1,208 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import spark.Request;
+import static org.openforis.ceo.JsonUtils.parseJson;
+
+// Compact binary encoding of plot arrays, served instead of JSON by the
+// plot list endpoints when the request's Accept header contains
+// application/x-ceo-plots (see public/js/plot-codec.js for the client).
+//
+// Layout, where varint is an unsigned LEB128 integer and svarint a
+// zigzag-encoded varint:
+//
+//   "CEOP" 0x01 varint(plotCount)
+//   per plot:
+//     svarint(id - previous plot id)
+//     svarint(lon - previous center lon) svarint(lat - previous center lat)
+//     byte(fields) varint(analyses)
+//     [if fields & 4: varint(byteLength) utf8(user)]
+//     [if fields & 2: varint(sampleCount)
+//      per sample:
+//        svarint(id - previous sample id)
+//        svarint(lon - previous point lon) svarint(lat - previous point lat)
+//        varint(value == absent ? 0 : zigzag(value) + 1)]
+//
+// - Coordinates are quantized to 1e-7 degrees (about 1 cm). Deltas
+//   start from 0 for plots and ids, and from the plot's center for its
+//   first sample point.
+// - fields: 1 = flagged, 2 = has samples, 4 = has a user,
+//   8 = has a user field (which may be null).
+public class PlotCodec {
+
+    public static final String mediaType = "application/x-ceo-plots";
+    private static final byte[] magic = {'C', 'E', 'O', 'P', 1};
+    private static final double scale = 1e7;
+
+    public static boolean isAccepted(Request req) {
+        String accept = req.headers("Accept");
+        return accept != null && accept.contains(mediaType);
+    }
+
+    private static long quantize(double degrees) {
+        return Math.round(degrees * scale);
+    }
+
+    private static long[] parsePoint(String geoJson) {
+        JsonArray coordinates = parseJson(geoJson).getAsJsonObject().get("coordinates").getAsJsonArray();
+        return new long[]{quantize(coordinates.get(0).getAsDouble()), quantize(coordinates.get(1).getAsDouble())};
+    }
+
+    private static String makePoint(long lon, long lat) {
+        JsonArray coordinates = new JsonArray();
+        coordinates.add(lon / scale);
+        coordinates.add(lat / scale);
+        JsonObject point = new JsonObject();
+        point.addProperty("type", "Point");
+        point.add("coordinates", coordinates);
+        return point.toString();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSignedVarint(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static byte[] encode(JsonArray plots) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + plots.size() * 16);
+        out.write(magic, 0, magic.length);
+        writeVarint(out, plots.size());
+        long[] previous = {0, 0, 0}; // id, lon, lat
+        for (JsonElement element : plots) {
+            JsonObject plot = element.getAsJsonObject();
+            long id = plot.get("id").getAsLong();
+            long[] center = parsePoint(plot.get("center").getAsString());
+            boolean hasUserField = plot.has("user");
+            boolean hasUser = hasUserField && !plot.get("user").isJsonNull();
+            boolean hasSamples = plot.has("samples");
+            writeSignedVarint(out, id - previous[0]);
+            writeSignedVarint(out, center[0] - previous[1]);
+            writeSignedVarint(out, center[1] - previous[2]);
+            out.write((plot.get("flagged").getAsBoolean() ? 1 : 0)
+                      | (hasSamples ? 2 : 0)
+                      | (hasUser ? 4 : 0)
+                      | (hasUserField ? 8 : 0));
+            writeVarint(out, plot.get("analyses").getAsLong());
+            if (hasUser) {
+                byte[] user = plot.get("user").getAsString().getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, user.length);
+                out.write(user, 0, user.length);
+            }
+            if (hasSamples) {
+                JsonArray samples = plot.get("samples").getAsJsonArray();
+                writeVarint(out, samples.size());
+                long[] previousSample = {0, center[0], center[1]};
+                for (JsonElement sampleElement : samples) {
+                    JsonObject sample = sampleElement.getAsJsonObject();
+                    long sampleId = sample.get("id").getAsLong();
+                    long[] point = parsePoint(sample.get("point").getAsString());
+                    writeSignedVarint(out, sampleId - previousSample[0]);
+                    writeSignedVarint(out, point[0] - previousSample[1]);
+                    writeSignedVarint(out, point[1] - previousSample[2]);
+                    if (sample.has("value") && !sample.get("value").isJsonNull()) {
+                        long value = sample.get("value").getAsLong();
+                        writeVarint(out, ((value << 1) ^ (value >> 63)) + 1);
+                    } else {
+                        writeVarint(out, 0);
+                    }
+                    previousSample = new long[]{sampleId, point[0], point[1]};
+                }
+            }
+            previous = new long[]{id, center[0], center[1]};
+        }
+        return out.toByteArray();
+    }
+
+    private static class Reader {
+        final byte[] body;
+        int position;
+
+        Reader(byte[] body, int position) {
+            this.body = body;
+            this.position = position;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = body[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    // Inverse of encode, except that coordinates come back quantized
+    public static JsonArray decode(byte[] body) {
+        for (int i = 0; i < magic.length; i++) {
+            if (body[i] != magic[i]) {
+                throw new IllegalArgumentException("Not an " + mediaType + " body.");
+            }
+        }
+        Reader in = new Reader(body, magic.length);
+        JsonArray plots = new JsonArray();
+        long plotCount = in.readVarint();
+        long[] previous = {0, 0, 0};
+        for (long i = 0; i < plotCount; i++) {
+            long id = previous[0] + in.readSignedVarint();
+            long lon = previous[1] + in.readSignedVarint();
+            long lat = previous[2] + in.readSignedVarint();
+            int fields = body[in.position++];
+            JsonObject plot = new JsonObject();
+            plot.addProperty("id", id);
+            plot.addProperty("center", makePoint(lon, lat));
+            plot.addProperty("flagged", (fields & 1) != 0);
+            plot.addProperty("analyses", in.readVarint());
+            if ((fields & 4) != 0) {
+                int length = (int) in.readVarint();
+                plot.addProperty("user", new String(body, in.position, length, StandardCharsets.UTF_8));
+                in.position += length;
+            } else if ((fields & 8) != 0) {
+                plot.add("user", null);
+            }
+            if ((fields & 2) != 0) {
+                JsonArray samples = new JsonArray();
+                long sampleCount = in.readVarint();
+                long[] previousSample = {0, lon, lat};
+                for (long j = 0; j < sampleCount; j++) {
+                    long sampleId = previousSample[0] + in.readSignedVarint();
+                    long sampleLon = previousSample[1] + in.readSignedVarint();
+                    long sampleLat = previousSample[2] + in.readSignedVarint();
+                    long value = in.readVarint();
+                    JsonObject sample = new JsonObject();
+                    sample.addProperty("id", sampleId);
+                    sample.addProperty("point", makePoint(sampleLon, sampleLat));
+                    if (value > 0) {
+                        sample.addProperty("value", ((value - 1) >>> 1) ^ -((value - 1) & 1));
+                    }
+                    samples.add(sample);
+                    previousSample = new long[]{sampleId, sampleLon, sampleLat};
+                }
+                plot.add("samples", samples);
+            }
+            plots.add(plot);
+            previous = new long[]{id, lon, lat};
+        }
+        return plots;
+    }
+
+}
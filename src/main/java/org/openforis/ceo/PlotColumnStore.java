@@ -0,0 +1,552 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import static org.openforis.ceo.JsonUtils.deleteTempFile;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.intoJsonArray;
+import static org.openforis.ceo.JsonUtils.parseJson;
+import static org.openforis.ceo.JsonUtils.readJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.toStream;
+import static org.openforis.ceo.JsonUtils.writeJsonFile;
+
+// Alternative storage for a project's plots: fixed-width columns in a
+// memory-mapped plot-store-<id>.bin instead of the plot-data-<id>.json
+// array in the document cache. The plots live in the page cache rather
+// than on the heap, so heap usage doesn't grow with the number or the
+// size of the projects.
+//
+// Layout (big-endian), after a 64 byte header {"CEOC", format version,
+// data version, plot count, sample count, flags}:
+//
+//   long plotIds[plots]      double lons[plots]      double lats[plots]
+//   long sampleSeeds[plots]  long sampleIds[samples]
+//   [if flags & 1: double sampleLons[samples] double sampleLats[samples]]
+//   int analyses[plots]      int users[plots]        int firstSamples[plots + 1]
+//   byte plotFlags[plots]    byte sampleValues[samples]
+//
+// - users are indexes into plot-store-<id>-users.json (-1 = none).
+//   plotFlags: 1 = flagged, 2 = has a sampleSeed. sampleValues: 0 = no
+//   value, otherwise value + 1, so values must be between 0 and 254.
+// - Sample points are derived (see SamplePoints), unless some plots of
+//   the converted file still stored theirs. Then the points of all
+//   samples are kept in the sample coordinate columns.
+// - updatePlot changes analyses, user, flags and sample values in place,
+//   with the store's write lock held, forces them to disk and advances
+//   the data version in the header. Nothing else about a plot changes.
+// - The plots are picked, counted, clustered and queried by box through
+//   the same indexes as JSON plot files (see PlotSource), which are
+//   tied to the data version and kept current by updatePlot.
+// - convert turns a plot-data-<id>.json file into a store and removes
+//   it. Start the JVM with -Dceo.plotStore=columns to convert every
+//   project on startup and new projects once their plots are generated.
+public class PlotColumnStore {
+
+    private static final int magic = 0x43454F43; // "CEOC"
+    private static final int formatVersion = 1;
+    private static final int headerSize = 64;
+    private static final int versionOffset = 8;
+
+    private static class Layout {
+        final int plots;
+        final int samples;
+        final boolean sampleCoordinates;
+        final int plotIds;
+        final int lons;
+        final int lats;
+        final int sampleSeeds;
+        final int sampleIds;
+        final int sampleLons;
+        final int sampleLats;
+        final int analyses;
+        final int users;
+        final int firstSamples;
+        final int plotFlags;
+        final int sampleValues;
+        final int size;
+
+        Layout(int plots, int samples, boolean sampleCoordinates) {
+            this.plots = plots;
+            this.samples = samples;
+            this.sampleCoordinates = sampleCoordinates;
+            long sampleCoordinateBytes = sampleCoordinates ? 8L * samples : 0L;
+            long[] offsets = {headerSize,
+                              headerSize + 8L * plots,
+                              headerSize + 16L * plots,
+                              headerSize + 24L * plots,
+                              headerSize + 32L * plots,
+                              headerSize + 32L * plots + 8L * samples,
+                              headerSize + 32L * plots + 8L * samples + sampleCoordinateBytes,
+                              headerSize + 32L * plots + 8L * samples + 2 * sampleCoordinateBytes,
+                              headerSize + 36L * plots + 8L * samples + 2 * sampleCoordinateBytes,
+                              headerSize + 40L * plots + 8L * samples + 2 * sampleCoordinateBytes,
+                              headerSize + 44L * plots + 4 + 8L * samples + 2 * sampleCoordinateBytes,
+                              headerSize + 45L * plots + 4 + 8L * samples + 2 * sampleCoordinateBytes,
+                              headerSize + 45L * plots + 4 + 9L * samples + 2 * sampleCoordinateBytes};
+            if (offsets[offsets.length - 1] > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many plots or samples for one plot store.");
+            }
+            this.plotIds = (int) offsets[0];
+            this.lons = (int) offsets[1];
+            this.lats = (int) offsets[2];
+            this.sampleSeeds = (int) offsets[3];
+            this.sampleIds = (int) offsets[4];
+            this.sampleLons = (int) offsets[5];
+            this.sampleLats = (int) offsets[6];
+            this.analyses = (int) offsets[7];
+            this.users = (int) offsets[8];
+            this.firstSamples = (int) offsets[9];
+            this.plotFlags = (int) offsets[10];
+            this.sampleValues = (int) offsets[11];
+            this.size = (int) offsets[12];
+        }
+    }
+
+    private static class Store {
+        final MappedByteBuffer buffer;
+        final Layout layout;
+
+        Store(MappedByteBuffer buffer, Layout layout) {
+            this.buffer = buffer;
+            this.layout = layout;
+        }
+
+        long getPlotId(int position) {
+            return buffer.getLong(layout.plotIds + 8 * position);
+        }
+
+        double getLon(int position) {
+            return buffer.getDouble(layout.lons + 8 * position);
+        }
+
+        double getLat(int position) {
+            return buffer.getDouble(layout.lats + 8 * position);
+        }
+
+        int getAnalyses(int position) {
+            return buffer.getInt(layout.analyses + 4 * position);
+        }
+
+        int getUser(int position) {
+            return buffer.getInt(layout.users + 4 * position);
+        }
+
+        int getFirstSample(int position) {
+            return buffer.getInt(layout.firstSamples + 4 * position);
+        }
+
+        boolean isFlagged(int position) {
+            return (buffer.get(layout.plotFlags + position) & 1) != 0;
+        }
+    }
+
+    private static final Map<String, Store> stores = new ConcurrentHashMap<String, Store>();
+
+    public static boolean isEnabled() {
+        return System.getProperty("ceo.plotStore", "json").equals("columns");
+    }
+
+    private static String getStoreFilename(String projectId) {
+        return "plot-store-" + projectId + ".bin";
+    }
+
+    private static String getUsersFilename(String projectId) {
+        return "plot-store-" + projectId + "-users.json";
+    }
+
+    public static boolean exists(String projectId) {
+        return stores.containsKey(projectId) || getJsonFile(getStoreFilename(projectId)).exists();
+    }
+
+    private static Store open(String projectId) {
+        return stores.computeIfAbsent(projectId, id -> {
+                try (FileChannel channel = FileChannel.open(getJsonFile(getStoreFilename(projectId)).toPath(),
+                                                            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                    if (buffer.getInt(0) != magic || buffer.getInt(4) != formatVersion) {
+                        throw new IllegalStateException(getStoreFilename(projectId) + " is not a plot store.");
+                    }
+                    return new Store(buffer, new Layout(buffer.getInt(16), buffer.getInt(20), (buffer.getInt(24) & 1) != 0));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+    }
+
+    // Returns a number which changes whenever the plots of the project
+    // change, whether they are in a plot store or in plot-data-<id>.json
+    public static long getPlotDataVersion(String projectId) {
+        if (exists(projectId)) {
+            return FileLocks.withReadLock(getStoreFilename(projectId), () -> open(projectId).buffer.getLong(versionOffset));
+        } else {
+            return getFileVersion(PlotMutationLog.getPlotFilename(projectId));
+        }
+    }
+
+    private static JsonArray getUsers(String projectId) {
+        return getJsonFile(getUsersFilename(projectId)).exists()
+            ? readJsonSnapshot(getUsersFilename(projectId)).getAsJsonArray()
+            : new JsonArray();
+    }
+
+    private static String makeCenter(Store store, int position) {
+        return Projects.makeGeoJsonPoint(store.getLon(position), store.getLat(position)).toString();
+    }
+
+    private static JsonElement getUserName(Store store, JsonArray users, int position) {
+        int user = store.getUser(position);
+        return user < 0 ? JsonNull.INSTANCE : users.get(user);
+    }
+
+    // Returns the plot at position in the same form as in plot-data-<id>.json
+    private static JsonObject readPlot(Store store, JsonArray users, int position) {
+        JsonObject plot = new JsonObject();
+        plot.addProperty("id", store.getPlotId(position));
+        plot.addProperty("center", makeCenter(store, position));
+        plot.addProperty("flagged", store.isFlagged(position));
+        plot.addProperty("analyses", store.getAnalyses(position));
+        plot.add("user", getUserName(store, users, position));
+        if ((store.buffer.get(store.layout.plotFlags + position) & 2) != 0) {
+            plot.addProperty("sampleSeed", store.buffer.getLong(store.layout.sampleSeeds + 8 * position));
+        }
+        JsonArray samples = new JsonArray();
+        for (int sample = store.getFirstSample(position); sample < store.getFirstSample(position + 1); sample++) {
+            JsonObject sampleObject = new JsonObject();
+            sampleObject.addProperty("id", store.buffer.getLong(store.layout.sampleIds + 8 * sample));
+            if (store.layout.sampleCoordinates) {
+                sampleObject.addProperty("point", Projects.makeGeoJsonPoint(store.buffer.getDouble(store.layout.sampleLons + 8 * sample),
+                                                                            store.buffer.getDouble(store.layout.sampleLats + 8 * sample)).toString());
+            }
+            int value = store.buffer.get(store.layout.sampleValues + sample) & 0xFF;
+            if (value > 0) {
+                sampleObject.addProperty("value", value - 1);
+            }
+            samples.add(sampleObject);
+        }
+        plot.add("samples", samples);
+        return plot;
+    }
+
+    private static JsonObject readSummary(Store store, JsonArray users, int position, boolean withUser) {
+        JsonObject summary = new JsonObject();
+        summary.addProperty("id", store.getPlotId(position));
+        summary.addProperty("center", makeCenter(store, position));
+        summary.addProperty("flagged", store.isFlagged(position));
+        summary.addProperty("analyses", store.getAnalyses(position));
+        if (withUser && store.getUser(position) >= 0) {
+            summary.add("user", getUserName(store, users, position));
+        }
+        return summary;
+    }
+
+    // The plots of a store for the indexes built over PlotSource
+    private static class StorePlots implements PlotSource {
+        final Store store;
+        final JsonArray users;
+
+        StorePlots(Store store, JsonArray users) {
+            this.store = store;
+            this.users = users;
+        }
+
+        public long getVersion() {
+            return store.buffer.getLong(versionOffset);
+        }
+
+        public int size() {
+            return store.layout.plots;
+        }
+
+        public long getPlotId(int position) {
+            return store.getPlotId(position);
+        }
+
+        public double[] getCenter(int position) {
+            return new double[]{store.getLon(position), store.getLat(position)};
+        }
+
+        public boolean isFlagged(int position) {
+            return store.isFlagged(position);
+        }
+
+        public int getAnalyses(int position) {
+            return store.getAnalyses(position);
+        }
+
+        public String getUser(int position) {
+            int user = store.getUser(position);
+            return user < 0 ? null : users.get(user).getAsString();
+        }
+
+        public JsonObject getSummary(int position) {
+            return readSummary(store, users, position, false);
+        }
+
+        public JsonObject getPlot(int position) {
+            return readPlot(store, users, position);
+        }
+    }
+
+    // Like PlotSource.read, for a project with a store
+    static <T> T readPlots(String projectId, Function<PlotSource, T> action) {
+        return FileLocks.withReadLock(getStoreFilename(projectId),
+                                      () -> action.apply(new StorePlots(open(projectId), getUsers(projectId))));
+    }
+
+    // Plots are numbered from 1 in file order when they are generated, so try that first
+    private static int findPosition(Store store, long plotId) {
+        if (plotId >= 1 && plotId <= store.layout.plots && store.getPlotId((int) plotId - 1) == plotId) {
+            return (int) plotId - 1;
+        }
+        return IntStream.range(0, store.layout.plots)
+            .filter(position -> store.getPlotId(position) == plotId)
+            .findFirst()
+            .orElse(-1);
+    }
+
+    // Like PlotSummaryIndex.getSummaries
+    public static JsonArray getSummaries(String projectId, int maxPlots) {
+        return FileLocks.withReadLock(getStoreFilename(projectId), () -> {
+                Store store = open(projectId);
+                JsonArray users = getUsers(projectId);
+                int numPlots = store.layout.plots;
+                double stepSize = numPlots > maxPlots ? 1.0 * numPlots / maxPlots : 1.0;
+                return IntStream.range(0, Math.min(numPlots, maxPlots))
+                    .mapToObj(i -> readSummary(store, users, Math.toIntExact(Math.round(i * stepSize)), true))
+                    .collect(intoJsonArray);
+            });
+    }
+
+    public static Optional<JsonObject> getPlot(String projectId, long plotId) {
+        return FileLocks.withReadLock(getStoreFilename(projectId), () -> {
+                Store store = open(projectId);
+                int position = findPosition(store, plotId);
+                return position < 0 ? Optional.empty() : Optional.of(readPlot(store, getUsers(projectId), position));
+            });
+    }
+
+    // Like PlotMutationLog.forEachPlot. Each plot is read with the read
+    // lock held, so updates can go on during a long export.
+    public static void forEachPlot(String projectId, Consumer<JsonObject> action) {
+        String storeFilename = getStoreFilename(projectId);
+        int numPlots = FileLocks.withReadLock(storeFilename, () -> open(projectId).layout.plots);
+        for (int position = 0; position < numPlots; position++) {
+            int plotPosition = position;
+            action.accept(FileLocks.withReadLock(storeFilename,
+                                                 () -> readPlot(open(projectId), getUsers(projectId), plotPosition)));
+        }
+    }
+
+    private static byte encodeValue(JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            return 0;
+        }
+        int intValue = value.getAsInt();
+        if (intValue < 0 || intValue > 254) {
+            throw new IllegalArgumentException("Sample value " + intValue + " doesn't fit into a plot store.");
+        }
+        return (byte) (intValue + 1);
+    }
+
+    // Returns the index of user in the project's user table, adding it if needed
+    // NOTE: Call with the store's write lock held.
+    private static int getUserIndex(String projectId, JsonElement user) {
+        if (user == null || user.isJsonNull()) {
+            return -1;
+        }
+        JsonArray users = getUsers(projectId);
+        int index = IntStream.range(0, users.size())
+            .filter(i -> users.get(i).getAsString().equals(user.getAsString()))
+            .findFirst()
+            .orElse(-1);
+        if (index < 0) {
+            JsonArray updatedUsers = getJsonFile(getUsersFilename(projectId)).exists()
+                ? readJsonFile(getUsersFilename(projectId)).getAsJsonArray()
+                : new JsonArray();
+            updatedUsers.add(user);
+            writeJsonFile(getUsersFilename(projectId), updatedUsers);
+            index = updatedUsers.size() - 1;
+        }
+        return index;
+    }
+
+    // Like PlotMutationLog.updatePlot, but writes the changes returned
+    // by makeMutation into the store's columns
+    public static void updatePlot(String projectId, String plotId, Function<JsonObject, JsonObject> makeMutation) {
+        FileLocks.runWithWriteLock(getStoreFilename(projectId), () -> {
+                Store store = open(projectId);
+                int position = findPosition(store, Long.parseLong(plotId));
+                if (position >= 0) {
+                    JsonArray users = getUsers(projectId);
+                    JsonObject summary = readSummary(store, users, position, true);
+                    JsonObject mutation = makeMutation.apply(readPlot(store, users, position));
+                    // Encode and check every new value before writing any, so that a bad one
+                    // (e.g. a sample value above 254) leaves the plot as it was
+                    int firstSample = store.getFirstSample(position);
+                    byte[] values = new byte[store.getFirstSample(position + 1) - firstSample];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = store.buffer.get(store.layout.sampleValues + firstSample + i);
+                    }
+                    if (mutation.has("samples")) {
+                        JsonObject sampleValues = mutation.getAsJsonObject("samples");
+                        for (int i = 0; i < values.length; i++) {
+                            String sampleId = store.buffer.getLong(store.layout.sampleIds + 8 * (firstSample + i)) + "";
+                            if (sampleValues.has(sampleId)) {
+                                values[i] = encodeValue(sampleValues.get(sampleId));
+                            }
+                        }
+                    }
+                    int analyses = mutation.has("analyses") ? mutation.get("analyses").getAsInt() : store.getAnalyses(position);
+                    int flags = store.buffer.get(store.layout.plotFlags + position);
+                    if (mutation.has("flagged")) {
+                        flags = mutation.get("flagged").getAsBoolean() ? flags | 1 : flags & ~1;
+                    }
+                    int user = mutation.has("user") ? getUserIndex(projectId, mutation.get("user")) : store.getUser(position);
+
+                    store.buffer.putInt(store.layout.analyses + 4 * position, analyses);
+                    store.buffer.putInt(store.layout.users + 4 * position, user);
+                    store.buffer.put(store.layout.plotFlags + position, (byte) flags);
+                    for (int i = 0; i < values.length; i++) {
+                        store.buffer.put(store.layout.sampleValues + firstSample + i, values[i]);
+                    }
+                    long previousVersion = store.buffer.getLong(versionOffset);
+                    long version = previousVersion + 1;
+                    store.buffer.putLong(versionOffset, version);
+                    store.buffer.force();
+
+                    JsonObject updatedSummary = readSummary(store, getUsers(projectId), position, true);
+                    UnanalyzedPlotIndex.plotUpdated(projectId, previousVersion, version, position, updatedSummary);
+                    ProjectStats.plotUpdated(projectId, previousVersion, version, summary, updatedSummary);
+                    PlotSpatialIndex.plotUpdated(projectId, previousVersion, version);
+                    PlotClusterIndex.plotUpdated(projectId, previousVersion, version, position, summary, updatedSummary);
+                }
+            });
+    }
+
+    private static void writeStore(JsonObject project, JsonArray plots, Path file) throws IOException {
+        boolean sampleCoordinates = toStream(plots).anyMatch(SamplePoints::hasStoredPoints);
+        int numSamples = toStream(plots).mapToInt(plot -> plot.get("samples").getAsJsonArray().size()).sum();
+        Layout layout = new Layout(plots.size(), numSamples, sampleCoordinates);
+        JsonArray users = toStream(plots)
+            .map(plot -> plot.get("user"))
+            .filter(user -> user != null && !user.isJsonNull())
+            .distinct()
+            .collect(intoJsonArray);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+            buffer.putInt(0, magic);
+            buffer.putInt(4, formatVersion);
+            buffer.putLong(versionOffset, 1L);
+            buffer.putInt(16, layout.plots);
+            buffer.putInt(20, layout.samples);
+            buffer.putInt(24, sampleCoordinates ? 1 : 0);
+            int sample = 0;
+            for (int position = 0; position < plots.size(); position++) {
+                JsonObject plot = sampleCoordinates
+                    ? SamplePoints.withSamplePoints(project, plots.get(position).getAsJsonObject())
+                    : plots.get(position).getAsJsonObject();
+                JsonArray center = parseJson(plot.get("center").getAsString()).getAsJsonObject().get("coordinates").getAsJsonArray();
+                buffer.putLong(layout.plotIds + 8 * position, plot.get("id").getAsLong());
+                buffer.putDouble(layout.lons + 8 * position, center.get(0).getAsDouble());
+                buffer.putDouble(layout.lats + 8 * position, center.get(1).getAsDouble());
+                buffer.putInt(layout.analyses + 4 * position, plot.get("analyses").getAsInt());
+                JsonElement user = plot.get("user");
+                buffer.putInt(layout.users + 4 * position,
+                              user == null || user.isJsonNull() ? -1 : IntStream.range(0, users.size()).filter(i -> users.get(i).equals(user)).findFirst().getAsInt());
+                buffer.putInt(layout.firstSamples + 4 * position, sample);
+                int flags = plot.get("flagged").getAsBoolean() ? 1 : 0;
+                JsonElement sampleSeed = plots.get(position).getAsJsonObject().get("sampleSeed");
+                if (sampleSeed != null) {
+                    buffer.putLong(layout.sampleSeeds + 8 * position, sampleSeed.getAsLong());
+                    flags |= 2;
+                }
+                buffer.put(layout.plotFlags + position, (byte) flags);
+                for (JsonElement sampleElement : plot.get("samples").getAsJsonArray()) {
+                    JsonObject sampleObject = sampleElement.getAsJsonObject();
+                    buffer.putLong(layout.sampleIds + 8 * sample, sampleObject.get("id").getAsLong());
+                    if (sampleCoordinates) {
+                        JsonArray point = parseJson(sampleObject.get("point").getAsString()).getAsJsonObject().get("coordinates").getAsJsonArray();
+                        buffer.putDouble(layout.sampleLons + 8 * sample, point.get(0).getAsDouble());
+                        buffer.putDouble(layout.sampleLats + 8 * sample, point.get(1).getAsDouble());
+                    }
+                    buffer.put(layout.sampleValues + sample, encodeValue(sampleObject.get("value")));
+                    sample++;
+                }
+            }
+            buffer.putInt(layout.firstSamples + 4 * plots.size(), sample);
+            buffer.force();
+        }
+        writeJsonFile(getUsersFilename(project.get("id").getAsString()), users);
+    }
+
+    // Moves the plots of project from plot-data-<id>.json into a new plot
+    // store. Does nothing if the project has a store or no plot file.
+    public static void convert(JsonObject project) {
+        String projectId = project.get("id").getAsString();
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        FileLocks.runWithWriteLock(plotFilename, () -> FileLocks.runWithWriteLock(getStoreFilename(projectId), () -> {
+                File plotFile = getJsonFile(plotFilename);
+                if (exists(projectId) || !plotFile.exists()) {
+                    return;
+                }
+                File storeFile = getJsonFile(getStoreFilename(projectId));
+                Path tempFile = null;
+                try {
+                    // Both write locks are held throughout, so neither file can be replaced meanwhile
+                    tempFile = Files.createTempFile(storeFile.getParentFile().toPath(), "." + storeFile.getName() + ".", ".tmp");
+                    writeStore(project, PlotMutationLog.readPlots(projectId).toJsonArray(), tempFile);
+                    Files.move(tempFile, storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    deleteTempFile(tempFile);
+                }
+                // From here on the store is used, so the JSON plot file and its log can go
+                PlotMutationLog.discard(projectId);
+                plotFile.delete();
+                JsonDocumentCache.invalidate(plotFilename);
+                // The store's data versions are unrelated to the plot file's
+                UnanalyzedPlotIndex.forget(projectId);
+                PlotSpatialIndex.forget(projectId);
+                PlotClusterIndex.forget(projectId);
+                ProjectStats.forget(projectId);
+            }));
+    }
+
+    // Converts every project that still has a plot-data-<id>.json file.
+    // Called on startup with -Dceo.plotStore=columns, after
+    // PlotMutationLog.recover has folded the logs into the plot files.
+    public static void convertAll() {
+        toStream(readJsonSnapshot("project-list.json").getAsJsonArray())
+            .forEach(PlotColumnStore::convert);
+    }
+
+    // Removes the store of a project whose creation failed
+    public static void delete(String projectId) {
+        FileLocks.runWithWriteLock(getStoreFilename(projectId), () -> {
+                stores.remove(projectId);
+                getJsonFile(getStoreFilename(projectId)).delete();
+                getJsonFile(getUsersFilename(projectId)).delete();
+            });
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.openforis.ceo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+// Reserves the plots handed out by getUnanalyzedPlot, so that two
+// collectors aren't asked to interpret the same plot at the same time.
+//
+// - A lease belongs to one owner (a user name or session id) and lasts
+//   ceo.plotLease.ttlSeconds (default 600) unless it is renewed.
+// - Leases are kept in a ConcurrentHashMap keyed by "<projectId>:<plotId>".
+//   Taking or renewing a lease only locks that key's bin, so the hand-out
+//   path doesn't serialize collectors on each other.
+// - Expired leases can be taken over immediately. A daemon thread drains
+//   a DelayQueue of lease deadlines to remove them from the map as well.
+// - Leases are held in memory only and don't survive a restart.
+// - When every unanalyzed plot is leased, getUnanalyzedPlot answers
+//   "leased" with a Retry-After of the time until the first of the
+//   leases it ran into expires, at most ceo.plotLease.retrySeconds
+//   (default 30), since collectors usually finish their plots sooner.
+public class PlotLeases {
+
+    private static final long ttlSeconds = Long.getLong("ceo.plotLease.ttlSeconds", 600L);
+    private static final long retrySeconds = Long.getLong("ceo.plotLease.retrySeconds", 30L);
+
+    private static class Lease implements Delayed {
+        final String key;
+        final String owner;
+        final long expiresAt;
+
+        Lease(String key, String owner, long expiresAt) {
+            this.key = key;
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isActive(long now) {
+            return expiresAt - now > 0;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private static final Map<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+    private static final DelayQueue<Lease> deadlines = new DelayQueue<Lease>();
+
+    static {
+        Thread expirer = new Thread(() -> {
+                while (true) {
+                    try {
+                        Lease lease = deadlines.take();
+                        // Only removes the lease if it wasn't renewed or taken over in the meantime
+                        leases.remove(lease.key, lease);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "plot-lease-expirer");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    private static String getKey(String projectId, String plotId) {
+        return projectId + ":" + plotId;
+    }
+
+    public static long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public static long getRetrySeconds() {
+        return retrySeconds;
+    }
+
+    // Leases the plot to owner, unless someone else holds an active lease
+    // on it. Also succeeds (and extends the lease) if owner already holds it.
+    public static boolean tryAcquire(String projectId, String plotId, String owner) {
+        String key = getKey(projectId, plotId);
+        long now = System.nanoTime();
+        Lease newLease = new Lease(key, owner, now + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        Lease lease = leases.compute(key,
+                                     (k, current) -> current == null || !current.isActive(now) || current.owner.equals(owner)
+                                                     ? newLease
+                                                     : current);
+        if (lease == newLease) {
+            deadlines.add(newLease);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    // Extends owner's lease on the plot by another ttlSeconds. Fails if
+    // the lease expired and the plot was handed to someone else.
+    public static boolean renew(String projectId, String plotId, String owner) {
+        return tryAcquire(projectId, plotId, owner);
+    }
+
+    // Returns the seconds until the active lease on the plot runs out, or 0 if there is none
+    public static long getRemainingSeconds(String projectId, String plotId) {
+        Lease lease = leases.get(getKey(projectId, plotId));
+        long now = System.nanoTime();
+        return lease != null && lease.isActive(now)
+            ? (TimeUnit.NANOSECONDS.toMillis(lease.expiresAt - now) + 999L) / 1000L
+            : 0L;
+    }
+
+    // Called when owner has analyzed or flagged the plot. Leaves the
+    // lease alone if it has expired and been taken over by someone else.
+    public static void release(String projectId, String plotId, String owner) {
+        leases.computeIfPresent(getKey(projectId, plotId),
+                                (k, current) -> current.owner.equals(owner) ? null : current);
+    }
+
+}
@@ -0,0 +1,591 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.openforis.ceo.JsonUtils.deepCopy;
+import static org.openforis.ceo.JsonUtils.deleteTempFile;
+import static org.openforis.ceo.JsonUtils.getFileStat;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.installJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.parseJson;
+import static org.openforis.ceo.JsonUtils.parseJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.replaceJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.toStream;
+import static org.openforis.ceo.JsonUtils.touchJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.writeJsonSnapshot;
+
+// Records single-plot changes (sample values, flags, analyses, user) in
+// an append-only log next to each plot-data-<id>.json file instead of
+// rewriting the whole file on every submission.
+//
+// - Each record is one JSON object per line in plot-log-<id>.jsonl.
+//   Records store the resulting field values (not increments), so
+//   replaying a record more than once has no further effect.
+// - Records are fsynced one at a time by default. Start the JVM with
+//   -Dceo.plotLog.syncMode=group to fsync in the background every
+//   ceo.plotLog.syncIntervalMillis instead.
+// - Loading a plot file (see JsonUtils.readJsonSnapshot) replays its
+//   log over the last snapshot. A torn record at the end of the log
+//   (from a crash mid-append) is dropped.
+// - The cached plot array isn't copied on every change. Changed plots
+//   are held in a per-project overlay over it (see readPlots), which is
+//   tied to the version of the plot file together with a plot id to
+//   position map, and folded into a new cached array on compaction.
+// - A background thread compacts a log into a new plot-data snapshot
+//   once it holds ceo.plotLog.compactAfter records, and every
+//   ceo.plotLog.compactIntervalSeconds for logs with any records.
+// - A project's log is only changed while holding the write lock of its
+//   plot-data file (see FileLocks).
+public class PlotMutationLog {
+
+    private static final int compactAfter = Integer.getInteger("ceo.plotLog.compactAfter", 1000);
+    private static final long compactIntervalSeconds = Long.getLong("ceo.plotLog.compactIntervalSeconds", 300L);
+    private static final boolean groupSync = System.getProperty("ceo.plotLog.syncMode", "record").equals("group");
+    private static final long syncIntervalMillis = Long.getLong("ceo.plotLog.syncIntervalMillis", 50L);
+
+    private static class LogState {
+        FileChannel channel;
+        int records;
+        boolean dirty;
+        boolean compactionScheduled;
+    }
+
+    private static class Checkpoint {
+        final JsonElement snapshot;
+        final long position;
+        final int records;
+        // {lastModified, length} of the plot file, to notice if it is replaced meanwhile
+        final long[] fileStat;
+
+        Checkpoint(JsonElement snapshot, long position, int records, long[] fileStat) {
+            this.snapshot = snapshot;
+            this.position = position;
+            this.records = records;
+            this.fileStat = fileStat;
+        }
+    }
+
+    private static class Overlay {
+        long version;
+        // Positions sorted by plot id, for Plots.getPosition
+        final long[] sortedIds;
+        final int[] sortedPositions;
+        // Plots changed since the cached array was loaded or last compacted, by position
+        final Map<Integer, JsonObject> changed = new HashMap<Integer, JsonObject>();
+
+        Overlay(long version, int numPlots) {
+            this.version = version;
+            this.sortedIds = new long[numPlots];
+            this.sortedPositions = new int[numPlots];
+        }
+    }
+
+    // The current plots of a project: the cached plot array with the
+    // project's overlay laid over it. Only valid while the plot file's
+    // lock under which it was read is held.
+    public static class Plots implements PlotSource {
+        private final JsonArray base;
+        private final Overlay overlay;
+        private final long version;
+
+        private Plots(JsonArray base, Overlay overlay, long version) {
+            this.base = base;
+            this.overlay = overlay;
+            this.version = version;
+        }
+
+        // The version of the plot file read before the plots
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return base.size();
+        }
+
+        public JsonObject getPlot(int position) {
+            JsonObject plot = overlay.changed.get(position);
+            return plot != null ? plot : base.get(position).getAsJsonObject();
+        }
+
+        public long getPlotId(int position) {
+            return getPlot(position).get("id").getAsLong();
+        }
+
+        public double[] getCenter(int position) {
+            JsonArray center = parseJson(getPlot(position).get("center").getAsString()).getAsJsonObject().get("coordinates").getAsJsonArray();
+            return new double[]{center.get(0).getAsDouble(), center.get(1).getAsDouble()};
+        }
+
+        public boolean isFlagged(int position) {
+            return getPlot(position).get("flagged").getAsBoolean();
+        }
+
+        public int getAnalyses(int position) {
+            return getPlot(position).get("analyses").getAsInt();
+        }
+
+        public String getUser(int position) {
+            JsonElement user = getPlot(position).get("user");
+            return user == null || user.isJsonNull() ? null : user.getAsString();
+        }
+
+        public JsonObject getSummary(int position) {
+            JsonObject plot = getPlot(position);
+            JsonObject summary = new JsonObject();
+            summary.add("id", plot.get("id"));
+            summary.add("center", plot.get("center"));
+            summary.add("flagged", plot.get("flagged"));
+            summary.add("analyses", plot.get("analyses"));
+            return summary;
+        }
+
+        // Returns the position of the plot with id plotId, or -1 if there is none
+        public int getPosition(String plotId) {
+            try {
+                return PlotSummaryIndex.findPosition(overlay.sortedIds, overlay.sortedPositions, Long.parseLong(plotId));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public Stream<JsonObject> stream() {
+            return IntStream.range(0, size()).mapToObj(this::getPlot);
+        }
+
+        // Returns the plots as one array, which is the cached array itself if no plot has changed
+        public JsonArray toJsonArray() {
+            if (overlay.changed.isEmpty()) {
+                return base;
+            } else {
+                JsonArray plots = new JsonArray();
+                IntStream.range(0, size()).forEach(position -> plots.add(getPlot(position)));
+                return plots;
+            }
+        }
+    }
+
+    private static final Map<String, LogState> logs = new ConcurrentHashMap<String, LogState>();
+    private static final Map<String, Overlay> overlays = new ConcurrentHashMap<String, Overlay>();
+
+    private static final Object compactionLock = new Object();
+
+    private static final ScheduledExecutorService backgroundTasks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "plot-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    static {
+        backgroundTasks.scheduleWithFixedDelay(PlotMutationLog::compactAll, compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+        if (groupSync) {
+            backgroundTasks.scheduleWithFixedDelay(PlotMutationLog::syncAll, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static String getPlotFilename(String projectId) {
+        return "plot-data-" + projectId + ".json";
+    }
+
+    private static String getLogFilename(String projectId) {
+        return "plot-log-" + projectId + ".jsonl";
+    }
+
+    public static boolean isPlotFile(String filename) {
+        return filename.startsWith("plot-data-") && filename.endsWith(".json");
+    }
+
+    public static String getProjectId(String plotFilename) {
+        return plotFilename.substring("plot-data-".length(), plotFilename.length() - ".json".length());
+    }
+
+    // Returns a copy of plot with the changes in mutation applied
+    private static JsonObject applyMutation(JsonObject plot, JsonObject mutation) {
+        JsonObject updatedPlot = deepCopy(plot).getAsJsonObject();
+        mutation.entrySet().stream()
+            .filter(field -> !field.getKey().equals("plotId") && !field.getKey().equals("samples"))
+            .forEach(field -> updatedPlot.add(field.getKey(), field.getValue()));
+        if (mutation.has("samples")) {
+            JsonObject sampleValues = mutation.getAsJsonObject("samples");
+            toStream(updatedPlot.getAsJsonArray("samples"))
+                .filter(sample -> sampleValues.has(sample.get("id").getAsString()))
+                .forEach(sample -> sample.add("value", new JsonPrimitive(sampleValues.get(sample.get("id").getAsString()).getAsInt())));
+        }
+        return updatedPlot;
+    }
+
+    private static String[] readRecords(Path logFile) {
+        if (Files.exists(logFile)) {
+            try (Stream<String> lines = Files.lines(logFile, StandardCharsets.UTF_8)) {
+                return lines.filter(line -> !line.isEmpty()).toArray(String[]::new);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            return new String[]{};
+        }
+    }
+
+    private static Optional<JsonObject> parseRecord(String line) {
+        try {
+            return Optional.of(parseJson(line).getAsJsonObject());
+        } catch (Exception e) {
+            // Torn write from a crash while appending
+            return Optional.empty();
+        }
+    }
+
+    // Loader for plot-data-<id>.json files: the snapshot on disk with
+    // the project's log replayed over it.
+    // NOTE: Called by JsonUtils.readJsonSnapshot with the file's read lock held.
+    public static JsonElement loadPlotFile(File plotFile) {
+        if (!plotFile.exists()) {
+            // Let parseJsonFile report the missing file
+            return parseJsonFile(plotFile);
+        } else {
+            String projectId = getProjectId(plotFile.getName());
+            JsonArray plots = parseJsonFile(plotFile).getAsJsonArray();
+            String[] records = readRecords(getJsonFile(getLogFilename(projectId)).toPath());
+            if (records.length > 0) {
+                Map<String, Integer> plotIndexes = IntStream.range(0, plots.size())
+                    .boxed()
+                    .collect(Collectors.toMap(i -> plots.get(i).getAsJsonObject().get("id").getAsString(),
+                                              i -> i,
+                                              (a, b) -> a));
+                Arrays.stream(records)
+                    .map(PlotMutationLog::parseRecord)
+                    .filter(Optional::isPresent)
+                    .map(Optional::get)
+                    .filter(mutation -> plotIndexes.containsKey(mutation.get("plotId").getAsString()))
+                    .forEach(mutation -> {
+                            int index = plotIndexes.get(mutation.get("plotId").getAsString());
+                            plots.set(index, applyMutation(plots.get(index).getAsJsonObject(), mutation));
+                        });
+            }
+            return plots;
+        }
+    }
+
+    // Returns the log's records grouped by the id of the plot they change, in log order
+    // NOTE: Call with the plot file's read lock held.
+    public static Map<String, List<JsonObject>> readMutations(String projectId) {
+        Map<String, List<JsonObject>> mutations = new HashMap<String, List<JsonObject>>();
+        Arrays.stream(readRecords(getJsonFile(getLogFilename(projectId)).toPath()))
+            .map(PlotMutationLog::parseRecord)
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .forEach(mutation -> mutations.computeIfAbsent(mutation.get("plotId").getAsString(),
+                                                           plotId -> new ArrayList<JsonObject>())
+                     .add(mutation));
+        return mutations;
+    }
+
+    // Returns plot with the records of readMutations for it applied
+    public static JsonObject applyMutations(JsonObject plot, Map<String, List<JsonObject>> mutations) {
+        List<JsonObject> plotMutations = mutations.get(plot.get("id").getAsString());
+        if (plotMutations != null) {
+            for (JsonObject mutation : plotMutations) {
+                plot = applyMutation(plot, mutation);
+            }
+        }
+        return plot;
+    }
+
+    // Calls action with each plot of the project, in file order, without
+    // loading the whole plot array: the snapshot on disk is parsed one
+    // plot at a time and the log's records are applied to the plots they
+    // name. Changes made after the call has started may not be seen.
+    public static void forEachPlot(String projectId, Consumer<JsonObject> action) {
+        String plotFilename = getPlotFilename(projectId);
+        Map<String, List<JsonObject>> mutations = new HashMap<String, List<JsonObject>>();
+        // Open the snapshot and read the log under the same lock, so that a compaction can't
+        // trim records from the log which the opened snapshot doesn't contain yet
+        JsonReader snapshotReader = FileLocks.withReadLock(plotFilename, () -> {
+                mutations.putAll(readMutations(projectId));
+                try {
+                    return new JsonReader(Files.newBufferedReader(getJsonFile(plotFilename).toPath(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        try (JsonReader reader = snapshotReader) {
+            JsonParser parser = new JsonParser();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                action.accept(applyMutations(parser.parse(reader).getAsJsonObject(), mutations));
+            }
+            reader.endArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Opens the log for appending, cutting off a torn record at its end.
+    // Returns null if the log doesn't exist yet.
+    private static FileChannel openLog(Path logFile, boolean create) {
+        if (!create && !Files.exists(logFile)) {
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.size() > 0) {
+                byte[] contents = Files.readAllBytes(logFile);
+                int lastNewline = IntStream.iterate(contents.length - 1, i -> i - 1)
+                    .limit(contents.length)
+                    .filter(i -> contents[i] == '\n')
+                    .findFirst()
+                    .orElse(-1);
+                channel.truncate(lastNewline + 1);
+            }
+            channel.position(channel.size());
+            return channel;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static LogState getLog(String projectId) {
+        return logs.computeIfAbsent(projectId, id -> {
+                Path logFile = getJsonFile(getLogFilename(id)).toPath();
+                LogState log = new LogState();
+                log.channel = openLog(logFile, false);
+                log.records = readRecords(logFile).length;
+                return log;
+            });
+    }
+
+    private static void appendRecord(String projectId, LogState log, JsonObject mutation) {
+        try {
+            if (log.channel == null) {
+                log.channel = openLog(getJsonFile(getLogFilename(projectId)).toPath(), true);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap((mutation.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                log.channel.write(buffer);
+            }
+            if (groupSync) {
+                log.dirty = true;
+            } else {
+                log.channel.force(false);
+            }
+            log.records += 1;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Overlay buildOverlay(JsonArray plots, long version) {
+        Overlay overlay = new Overlay(version, plots.size());
+        long[] ids = toStream(plots).mapToLong(plot -> plot.get("id").getAsLong()).toArray();
+        PlotSummaryIndex.sortById(ids, overlay.sortedIds, overlay.sortedPositions);
+        return overlay;
+    }
+
+    // Returns the current plots of the project.
+    // NOTE: Call with the plot file's read or write lock held, and only use the result while holding it.
+    public static Plots readPlots(String projectId) {
+        String plotFilename = getPlotFilename(projectId);
+        // Read the version first, so a concurrent reload can only make the overlay look stale.
+        // Any reload of the cached array replays the log, so an overlay of the same version
+        // still matches the reloaded array.
+        long version = getFileVersion(plotFilename);
+        JsonArray base = readJsonSnapshot(plotFilename).getAsJsonArray();
+        Overlay overlay = overlays.compute(projectId,
+                                           (id, current) -> current != null && current.version == version
+                                                            ? current
+                                                            : buildOverlay(base, version));
+        return new Plots(base, overlay, version);
+    }
+
+    // Durably records the changes returned by makeMutation (called with
+    // the current state of the plot) and adds the changed plot to the
+    // project's overlay. Does nothing if the project has no plot with id
+    // plotId.
+    public static void updatePlot(String projectId, String plotId, Function<JsonObject, JsonObject> makeMutation) {
+        String plotFilename = getPlotFilename(projectId);
+        FileLocks.runWithWriteLock(plotFilename, () -> {
+            LogState log = getLog(projectId);
+            Plots plots = readPlots(projectId);
+            int position = plots.getPosition(plotId);
+            if (position < 0) {
+                return;
+            }
+            JsonObject plot = plots.getPlot(position);
+            JsonObject mutation = makeMutation.apply(plot);
+            mutation.add("plotId", plot.get("id"));
+            appendRecord(projectId, log, mutation);
+
+            // The cached array is left alone, since readers may still be iterating over it
+            JsonObject updatedPlot = applyMutation(plot, mutation);
+            long previousVersion = getFileVersion(plotFilename);
+            touchJsonSnapshot(plotFilename);
+            long version = getFileVersion(plotFilename);
+            plots.overlay.changed.put(position, updatedPlot);
+            plots.overlay.version = version;
+            UnanalyzedPlotIndex.plotUpdated(projectId, previousVersion, version, position, updatedPlot);
+            ProjectStats.plotUpdated(projectId, previousVersion, version, plot, updatedPlot);
+            PlotSpatialIndex.plotUpdated(projectId, previousVersion, version);
+            PlotClusterIndex.plotUpdated(projectId, previousVersion, version, position, plot, updatedPlot);
+            PlotSummaryIndex.plotUpdated(projectId, previousVersion, version, position, updatedPlot);
+
+            if (log.records >= compactAfter && !log.compactionScheduled) {
+                log.compactionScheduled = true;
+                backgroundTasks.execute(() -> compact(projectId));
+            }
+        });
+    }
+
+    // Writes the current plot array to plot-data-<id>.json and removes
+    // the records it contains from the log. Submissions to the project
+    // are only blocked while the (short) log tail is being rewritten.
+    public static void compact(String projectId) {
+        synchronized (compactionLock) {
+            String plotFilename = getPlotFilename(projectId);
+            LogState log = getLog(projectId);
+            // Capture the current plot array together with the log position it corresponds to
+            Checkpoint checkpoint = FileLocks.withWriteLock(plotFilename, () -> {
+                    log.compactionScheduled = false;
+                    if (log.records == 0) {
+                        return null;
+                    }
+                    // Fold the overlay into a new cached array, which becomes the snapshot
+                    Plots plots = readPlots(projectId);
+                    JsonArray snapshot = plots.toJsonArray();
+                    replaceJsonSnapshot(plotFilename, snapshot);
+                    plots.overlay.changed.clear();
+                    try {
+                        return new Checkpoint(snapshot, log.channel.size(), log.records, getFileStat(plotFilename));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            if (checkpoint == null) {
+                return;
+            }
+
+            // A crash after this point just replays records which are already in the snapshot
+            Path snapshotFile = writeJsonSnapshot(plotFilename, checkpoint.snapshot);
+
+            boolean installed = FileLocks.withWriteLock(plotFilename, () -> {
+                // The project may have been discarded or its plots rewritten while the snapshot was written
+                if (!installJsonSnapshot(plotFilename, snapshotFile, checkpoint.fileStat)) {
+                    return false;
+                }
+                Path tempFile = null;
+                try {
+                    Path logFile = getJsonFile(getLogFilename(projectId)).toPath();
+                    tempFile = Files.createTempFile(logFile.getParent(), "." + logFile.getFileName() + ".", ".tmp");
+                    try (FileChannel source = FileChannel.open(logFile, StandardOpenOption.READ);
+                         FileChannel target = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                        source.transferTo(checkpoint.position, source.size() - checkpoint.position, target);
+                        target.force(false);
+                    }
+                    log.channel.close();
+                    Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    log.channel = openLog(logFile, true);
+                    log.records -= checkpoint.records;
+                    log.dirty = false;
+                    return true;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    deleteTempFile(tempFile);
+                }
+            });
+            if (installed) {
+                ProjectStats.saveStats(projectId, checkpoint.snapshot);
+            }
+        }
+    }
+
+    private static void compactAll() {
+        logs.keySet().forEach(projectId -> {
+                try {
+                    compact(projectId);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+    }
+
+    // Only the background thread takes a read lock to sync, so it can reset dirty safely
+    private static void syncAll() {
+        logs.forEach((projectId, log) -> {
+                FileLocks.withReadLock(getPlotFilename(projectId), () -> {
+                        try {
+                            if (log.dirty && log.channel != null) {
+                                log.channel.force(false);
+                                log.dirty = false;
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                        return null;
+                    });
+            });
+    }
+
+    // Forgets any log left over from an earlier project with the same id
+    public static void discard(String projectId) {
+        FileLocks.runWithWriteLock(getPlotFilename(projectId), () -> {
+            LogState log = getLog(projectId);
+            try {
+                if (log.channel != null) {
+                    log.channel.truncate(0);
+                    log.channel.force(false);
+                }
+                log.records = 0;
+                log.dirty = false;
+                overlays.remove(projectId);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    // Crash recovery: removes temporary files left by interrupted
+    // compactions and folds every non-empty log into its plot snapshot.
+    // Called once on startup.
+    public static void recover() {
+        File[] tempFiles = getJsonFile("").listFiles((dir, name) -> name.startsWith(".plot-") && name.endsWith(".tmp"));
+        Arrays.stream(tempFiles == null ? new File[]{} : tempFiles)
+            .forEach(File::delete);
+        File[] logFiles = getJsonFile("").listFiles((dir, name) -> name.startsWith("plot-log-") && name.endsWith(".jsonl"));
+        Arrays.stream(logFiles == null ? new File[]{} : logFiles)
+            .filter(logFile -> logFile.length() > 0)
+            .map(logFile -> logFile.getName().substring("plot-log-".length(), logFile.getName().length() - ".jsonl".length()))
+            .filter(projectId -> getJsonFile(getPlotFilename(projectId)).exists())
+            .forEach(PlotMutationLog::compact);
+    }
+
+}
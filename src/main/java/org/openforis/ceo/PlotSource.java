@@ -0,0 +1,54 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.util.function.Function;
+
+// The plots of one project by position, whether they are kept in
+// plot-data-<id>.json (see PlotMutationLog.Plots) or in a
+// PlotColumnStore, so that UnanalyzedPlotIndex, PlotSpatialIndex,
+// PlotClusterIndex and ProjectStats can be built over either.
+//
+// - Positions and centers never change. Flags, analyses and users only
+//   change through PlotMutationLog.updatePlot or
+//   PlotColumnStore.updatePlot, which pass each change on to the
+//   indexes together with the old and the new version.
+// - Versions of the two kinds of sources are unrelated, so the indexes
+//   of a project are forgotten when its plots are converted to a store.
+public interface PlotSource {
+
+    // The version of the plots: the version of plot-data-<id>.json or the
+    // data version of the store
+    long getVersion();
+
+    int size();
+
+    long getPlotId(int position);
+
+    // {lon, lat} of the plot's center
+    double[] getCenter(int position);
+
+    boolean isFlagged(int position);
+
+    int getAnalyses(int position);
+
+    // Returns null if no user has analyzed the plot
+    String getUser(int position);
+
+    // Returns {id, center, flagged, analyses}
+    JsonObject getSummary(int position);
+
+    // Returns the plot in the same form as in plot-data-<id>.json
+    JsonObject getPlot(int position);
+
+    // Calls action with the project's plots, holding the read lock of the
+    // file they are kept in
+    static <T> T read(String projectId, Function<PlotSource, T> action) {
+        if (PlotColumnStore.exists(projectId)) {
+            return PlotColumnStore.readPlots(projectId, action);
+        } else {
+            return FileLocks.withReadLock(PlotMutationLog.getPlotFilename(projectId),
+                                          () -> action.apply(PlotMutationLog.readPlots(projectId)));
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+import static org.openforis.ceo.JsonUtils.intoJsonArray;
+
+// Per-project R-tree (JTS STRtree) over the plot centers, so the plots in
+// a map viewport can be found without scanning the whole plot file.
+//
+// - The tree stores each plot's position (see PlotSource), and the
+//   plots themselves are read from the current plots, so the returned
+//   flags and analyses are always current.
+// - An index is built on first use and tagged with the version of the
+//   plots. Plot mutations don't move plots, so PlotMutationLog.updatePlot
+//   and PlotColumnStore.updatePlot only advance the version; any other
+//   change causes a rebuild on the next query.
+// - When more plots than requested fall into the bounding box, the box
+//   is divided into a grid of about limit cells and the plots are taken
+//   round-robin from the cells, so the result covers the box evenly.
+public class PlotSpatialIndex {
+
+    private static class Index {
+        long version;
+        final STRtree tree;
+        final double[] lons;
+        final double[] lats;
+
+        Index(long version, STRtree tree, double[] lons, double[] lats) {
+            this.version = version;
+            this.tree = tree;
+            this.lons = lons;
+            this.lats = lats;
+        }
+    }
+
+    private static final Map<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+
+    private static Index buildIndex(PlotSource plots) {
+        double[] lons = new double[plots.size()];
+        double[] lats = new double[plots.size()];
+        STRtree tree = new STRtree();
+        IntStream.range(0, plots.size()).forEach(position -> {
+                double[] center = plots.getCenter(position);
+                lons[position] = center[0];
+                lats[position] = center[1];
+                tree.insert(new Envelope(lons[position], lons[position], lats[position], lats[position]), position);
+            });
+        // Build now, since queries on an unbuilt STRtree would build it without synchronization
+        tree.build();
+        return new Index(plots.getVersion(), tree, lons, lats);
+    }
+
+    // Returns the positions of up to limit plots spread evenly over the given box
+    private static int[] stratify(IntToDoubleFunction lonOf, IntToDoubleFunction latOf, int[] positions,
+                          double lonMin, double latMin, double lonMax, double latMax, int limit) {
+        int gridSize = (int) Math.ceil(Math.sqrt(limit));
+        double cellWidth = Math.max(lonMax - lonMin, Double.MIN_VALUE) / gridSize;
+        double cellHeight = Math.max(latMax - latMin, Double.MIN_VALUE) / gridSize;
+        int[] cells = Arrays.stream(positions)
+            .map(position -> {
+                    int column = Math.min(gridSize - 1, (int) ((lonOf.applyAsDouble(position) - lonMin) / cellWidth));
+                    int row = Math.min(gridSize - 1, (int) ((latOf.applyAsDouble(position) - latMin) / cellHeight));
+                    return row * gridSize + column;
+                })
+            .toArray();
+        // rankInCell[i] = how many plots in the same cell come before positions[i]
+        int[] cellCounts = new int[gridSize * gridSize];
+        int[] rankInCell = Arrays.stream(cells).map(cell -> cellCounts[cell]++).toArray();
+        // Take every plot up to the highest rank at which the limit isn't exceeded yet, then fill
+        // up the remaining slots with plots of the next rank
+        int[] plotsAtRank = new int[positions.length + 1];
+        Arrays.stream(rankInCell).forEach(rank -> plotsAtRank[rank]++);
+        int taken = 0;
+        int rank = 0;
+        while (taken + plotsAtRank[rank] <= limit) {
+            taken += plotsAtRank[rank];
+            rank++;
+        }
+        int fullRanks = rank;
+        int[] remaining = {limit - taken};
+        return IntStream.range(0, positions.length)
+            .filter(i -> rankInCell[i] < fullRanks || (rankInCell[i] == fullRanks && remaining[0]-- > 0))
+            .map(i -> positions[i])
+            .toArray();
+    }
+
+    // Returns {id, center, flagged, analyses} for up to limit plots of the
+    // project whose centers lie in the given box (in WGS84 lon/lat)
+    public static JsonArray getPlotsInBox(String projectId, double lonMin, double latMin, double lonMax, double latMax, int limit) {
+        return PlotSource.read(projectId, plots -> {
+                Index index = indexes.compute(projectId,
+                                              (id, current) -> current != null && current.version == plots.getVersion()
+                                                               ? current
+                                                               : buildIndex(plots));
+                IntStream.Builder hits = IntStream.builder();
+                index.tree.query(new Envelope(lonMin, lonMax, latMin, latMax), item -> hits.add((Integer) item));
+                int[] positions = hits.build().sorted().toArray();
+                int[] selected = positions.length > limit
+                    ? stratify(position -> index.lons[position], position -> index.lats[position], positions, lonMin, latMin, lonMax, latMax, limit)
+                    : positions;
+                return Arrays.stream(selected)
+                    .mapToObj(plots::getSummary)
+                    .collect(intoJsonArray);
+            });
+    }
+
+    // Called by PlotMutationLog.updatePlot and PlotColumnStore.updatePlot,
+    // with the write lock of the plots' file held, after the version went
+    // from previousVersion to version without any plot being added,
+    // removed or moved
+    public static void plotUpdated(String projectId, long previousVersion, long version) {
+        Index index = indexes.get(projectId);
+        if (index != null && index.version == previousVersion) {
+            index.version = version;
+        } else if (index != null) {
+            // Missed an earlier change, so rebuild on next use
+            indexes.remove(projectId);
+        }
+    }
+
+    // Called when the project's plots are discarded (see ProjectJobs) or converted (see PlotColumnStore)
+    public static void forget(String projectId) {
+        indexes.remove(projectId);
+    }
+
+}
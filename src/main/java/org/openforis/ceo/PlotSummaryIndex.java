@@ -0,0 +1,306 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.IntStream;
+import static org.openforis.ceo.JsonUtils.adoptFileVersion;
+import static org.openforis.ceo.JsonUtils.deepCopy;
+import static org.openforis.ceo.JsonUtils.getFileStat;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.intoJsonArray;
+import static org.openforis.ceo.JsonUtils.parseJson;
+
+// Per-project summaries of the plots (id, center, flagged, analyses,
+// user) for the plot list endpoints, together with the byte range of
+// each plot in the plot-data-<id>.json snapshot on disk, so that one
+// plot with its samples can be read without parsing the whole file.
+//
+// - The index is built by scanning the snapshot once, parsing one plot
+//   at a time, with the records of the project's log applied. It
+//   doesn't need the plot array to be loaded into the document cache.
+// - It is tagged with the version of the plot file and the stat of the
+//   snapshot. PlotMutationLog.updatePlot updates the changed plot's
+//   summary, since log records don't touch the snapshot; a compaction
+//   or any other change to the file causes a rebuild on the next use.
+// - The plots that the log has changed since the snapshot are kept
+//   whole in the index, so getPlot never has to read the log. There
+//   are at most ceo.plotLog.compactAfter of them between compactions.
+public class PlotSummaryIndex {
+
+    private static class Index {
+        long version;
+        final long[] snapshotStat;
+        final long[] ids;
+        final String[] centers;
+        final boolean[] flagged;
+        final int[] analyses;
+        final String[] users;
+        // Byte range of each plot in the snapshot
+        final long[] offsets;
+        final int[] lengths;
+        // Positions sorted by plot id, for getPosition
+        final long[] sortedIds;
+        final int[] sortedPositions;
+        // Current state of the plots at the positions which the log has changed
+        final Map<Integer, JsonObject> changedPlots = new HashMap<Integer, JsonObject>();
+
+        Index(long version, long[] snapshotStat, int numPlots) {
+            this.version = version;
+            this.snapshotStat = snapshotStat;
+            this.ids = new long[numPlots];
+            this.centers = new String[numPlots];
+            this.flagged = new boolean[numPlots];
+            this.analyses = new int[numPlots];
+            this.users = new String[numPlots];
+            this.offsets = new long[numPlots];
+            this.lengths = new int[numPlots];
+            this.sortedIds = new long[numPlots];
+            this.sortedPositions = new int[numPlots];
+        }
+    }
+
+    private static final Map<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+
+    // Calls action with the bytes and the offset of each top level object of the JSON array in in.
+    // NOTE: Bytes of multi-byte UTF-8 characters are never ASCII, so the scan can
+    //       look at single bytes.
+    private static void scanObjects(InputStream in, ObjLongConsumer<byte[]> action) throws IOException {
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        long bufferOffset = 0;
+        long start = -1;
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int length;
+        while ((length = in.read(buffer)) >= 0) {
+            // Bytes of the current object before i are copied to object in one go
+            int from = start >= 0 ? 0 : -1;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '{' || b == '[') {
+                    if (depth == 1 && b == '{') {
+                        start = bufferOffset + i;
+                        from = i;
+                    }
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 1 && start >= 0) {
+                    object.write(buffer, from, i + 1 - from);
+                    action.accept(object.toByteArray(), start);
+                    object.reset();
+                    start = -1;
+                    from = -1;
+                }
+            }
+            if (from >= 0) {
+                object.write(buffer, from, length - from);
+            }
+            bufferOffset += length;
+        }
+    }
+
+    private static byte[] readRange(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+        }
+        return buffer.array();
+    }
+
+    private static JsonObject parsePlot(byte[] bytes) {
+        return parseJson(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    private static void summarize(Index index, int position, JsonObject plot) {
+        index.flagged[position] = plot.get("flagged").getAsBoolean();
+        index.analyses[position] = plot.get("analyses").getAsInt();
+        index.users[position] = plot.has("user") && !plot.get("user").isJsonNull() ? plot.get("user").getAsString() : null;
+    }
+
+    // NOTE: Called with the plot file's read lock held, so the log can't change during the scan.
+    private static Index buildIndex(String projectId, String plotFilename) {
+        long[] snapshotStat = getFileStat(plotFilename);
+        Map<String, List<JsonObject>> mutations = PlotMutationLog.readMutations(projectId);
+        if (snapshotStat[1] < 0) {
+            return new Index(getFileVersion(plotFilename), snapshotStat, 0);
+        }
+        try (InputStream in = Files.newInputStream(getJsonFile(plotFilename).toPath())) {
+            List<long[]> ranges = new ArrayList<long[]>();
+            List<JsonObject> summaries = new ArrayList<JsonObject>();
+            Map<Integer, JsonObject> changedPlots = new HashMap<Integer, JsonObject>();
+            scanObjects(in, (bytes, offset) -> {
+                    JsonObject plot = PlotMutationLog.applyMutations(parsePlot(bytes), mutations);
+                    if (mutations.containsKey(plot.get("id").getAsString())) {
+                        changedPlots.put(ranges.size(), deepCopy(plot).getAsJsonObject());
+                    }
+                    plot.remove("samples");
+                    ranges.add(new long[]{offset, bytes.length});
+                    summaries.add(plot);
+                });
+            Index index = new Index(-1L, snapshotStat, ranges.size());
+            index.changedPlots.putAll(changedPlots);
+            for (int position = 0; position < ranges.size(); position++) {
+                JsonObject plot = summaries.get(position);
+                index.offsets[position] = ranges.get(position)[0];
+                index.lengths[position] = Math.toIntExact(ranges.get(position)[1]);
+                index.ids[position] = plot.get("id").getAsLong();
+                index.centers[position] = plot.get("center").getAsString();
+                summarize(index, position, plot);
+            }
+            sortById(index.ids, index.sortedIds, index.sortedPositions);
+            // The snapshot plus the log is what the file's current version stands for,
+            // unless the scanned snapshot has been replaced in the meantime
+            index.version = adoptFileVersion(plotFilename, snapshotStat[0], snapshotStat[1]);
+            return index;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isCurrent(Index index, String plotFilename) {
+        return index != null
+            && index.version == getFileVersion(plotFilename)
+            && Arrays.equals(index.snapshotStat, getFileStat(plotFilename));
+    }
+
+    // NOTE: Call with the plot file's read lock held.
+    private static Index getIndex(String projectId, String plotFilename, boolean rebuild) {
+        return indexes.compute(projectId,
+                               (id, current) -> !rebuild && isCurrent(current, plotFilename)
+                                                ? current
+                                                : buildIndex(projectId, plotFilename));
+    }
+
+    private static JsonObject getSummary(Index index, int position) {
+        JsonObject summary = new JsonObject();
+        summary.addProperty("id", index.ids[position]);
+        summary.addProperty("center", index.centers[position]);
+        summary.addProperty("flagged", index.flagged[position]);
+        summary.addProperty("analyses", index.analyses[position]);
+        if (index.users[position] != null) {
+            summary.addProperty("user", index.users[position]);
+        }
+        return summary;
+    }
+
+    // Returns the summaries of up to maxPlots of the project's plots,
+    // spread evenly over the plot file
+    public static JsonArray getSummaries(String projectId, int maxPlots) {
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        return FileLocks.withReadLock(plotFilename, () -> {
+                Index index = getIndex(projectId, plotFilename, false);
+                int numPlots = index.ids.length;
+                double stepSize = numPlots > maxPlots ? 1.0 * numPlots / maxPlots : 1.0;
+                return IntStream.range(0, Math.min(numPlots, maxPlots))
+                    .mapToObj(i -> getSummary(index, Math.toIntExact(Math.round(i * stepSize))))
+                    .collect(intoJsonArray);
+            });
+    }
+
+    // Fills sortedIds with ids in ascending order and sortedPositions with
+    // the position in ids of each. Also used by PlotMutationLog.
+    static void sortById(long[] ids, long[] sortedIds, int[] sortedPositions) {
+        int[] order = IntStream.range(0, ids.length).boxed()
+            .sorted((a, b) -> Long.compare(ids[a], ids[b]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+        IntStream.range(0, order.length).forEach(i -> {
+                sortedIds[i] = ids[order[i]];
+                sortedPositions[i] = order[i];
+            });
+    }
+
+    // Returns the position of plotId given the arrays filled by sortById, or -1
+    static int findPosition(long[] sortedIds, int[] sortedPositions, long plotId) {
+        int i = Arrays.binarySearch(sortedIds, plotId);
+        return i < 0 ? -1 : sortedPositions[i];
+    }
+
+    private static int getPosition(Index index, long plotId) {
+        return findPosition(index.sortedIds, index.sortedPositions, plotId);
+    }
+
+    // Returns one plot, read from its byte range in the snapshot unless
+    // the log has changed it, or nothing if the project has no plot with
+    // id plotId
+    public static Optional<JsonObject> getPlot(String projectId, long plotId) {
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        return FileLocks.withReadLock(plotFilename, () -> {
+                // A compaction may replace the snapshot without the write lock, so if the
+                // plot isn't at its indexed range anymore, rebuild once and try again
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    Index index = getIndex(projectId, plotFilename, attempt > 0);
+                    int position = getPosition(index, plotId);
+                    if (position < 0) {
+                        return Optional.empty();
+                    }
+                    JsonObject changedPlot = index.changedPlots.get(position);
+                    if (changedPlot != null) {
+                        return Optional.of(changedPlot);
+                    }
+                    Optional<JsonObject> plot = readPlot(plotFilename, index.offsets[position], index.lengths[position])
+                        .filter(candidate -> candidate.get("id").getAsLong() == plotId);
+                    if (plot.isPresent()) {
+                        return plot;
+                    }
+                }
+                throw new IllegalStateException("Plot " + plotId + " not found at its indexed position in " + plotFilename + ".");
+            });
+    }
+
+    private static Optional<JsonObject> readPlot(String plotFilename, long offset, int length) {
+        try (FileChannel channel = FileChannel.open(getJsonFile(plotFilename).toPath(), StandardOpenOption.READ)) {
+            return Optional.of(parsePlot(readRange(channel, offset, length)));
+        } catch (Exception e) {
+            // The file has changed since the index was built
+            return Optional.empty();
+        }
+    }
+
+    // Called by PlotMutationLog.updatePlot, with the plot file's write
+    // lock held, after the plot at position was replaced by plot and the
+    // file's version went from previousVersion to version
+    public static void plotUpdated(String projectId, long previousVersion, long version, int position, JsonObject plot) {
+        Index index = indexes.get(projectId);
+        if (index != null && index.version == previousVersion) {
+            summarize(index, position, plot);
+            index.changedPlots.put(position, plot);
+            index.version = version;
+        } else if (index != null) {
+            // Missed an earlier change, so rebuild on next use
+            indexes.remove(projectId);
+        }
+    }
+
+    // Called when the project's plots are discarded (see ProjectJobs)
+    public static void forget(String projectId) {
+        indexes.remove(projectId);
+    }
+
+}
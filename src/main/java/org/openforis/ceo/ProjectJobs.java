@@ -0,0 +1,145 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import static org.openforis.ceo.JsonUtils.filterJsonFile;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.getNextId;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+
+// Runs project creation (plot generation and registration) in the
+// background, so that POST /create-project can return right away.
+//
+// - Jobs run on a fixed pool of ceo.projectJobs.threads (default 2)
+//   worker threads. Jobs beyond that wait in the pool's queue.
+// - Each job reports a phase ("queued", "generating", "registering",
+//   "done" or "failed") and the percent of plots generated so far,
+//   which GET /get-project-job-status/:id returns.
+// - A new project's id is reserved before its job starts, so that its
+//   files can be named after it before it is added to project-list.json.
+// - If a job fails, everything it may have created is removed again
+//   (see discardProject), so the reserved id can be used afresh.
+// - Finished jobs are forgotten after an hour.
+public class ProjectJobs {
+
+    private static final int threads = Integer.getInteger("ceo.projectJobs.threads", 2);
+    private static final long keepFinishedMillis = TimeUnit.HOURS.toMillis(1);
+
+    private static class Job {
+        final int projectId;
+        volatile String phase = "queued";
+        volatile int percent = 0;
+        volatile String error = null;
+        volatile long finishedAt = 0;
+
+        Job(int projectId) {
+            this.projectId = projectId;
+        }
+    }
+
+    private static final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private static final Set<Integer> reservedIds = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger workerCount = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread worker = new Thread(task, "project-creator-" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+
+    // Returns an id which is neither used in project-list.json nor
+    // reserved by another job. Released when the job using it finishes.
+    public static int reserveProjectId() {
+        return FileLocks.withWriteLock("project-list.json", () -> {
+                int nextListedId = getNextId(readJsonSnapshot("project-list.json").getAsJsonArray());
+                int nextReservedId = reservedIds.stream().mapToInt(id -> id + 1).max().orElse(0);
+                int newProjectId = Math.max(nextListedId, nextReservedId);
+                reservedIds.add(newProjectId);
+                return newProjectId;
+            });
+    }
+
+    // Queues work (called with the job id) for the project with the
+    // reserved id projectId and returns the job id. If work fails, the
+    // project is discarded again.
+    public static String submit(int projectId, Consumer<String> work) {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.finishedAt > 0 && now - job.finishedAt > keepFinishedMillis);
+
+        String jobId = UUID.randomUUID().toString();
+        Job job = new Job(projectId);
+        jobs.put(jobId, job);
+        workers.execute(() -> {
+                try {
+                    work.accept(jobId);
+                    job.percent = 100;
+                    job.phase = "done";
+                } catch (Throwable e) {
+                    // Errors (e.g. an OutOfMemoryError while generating plots) fail the job as
+                    // well, so the project is never left half created with the job "generating"
+                    e.printStackTrace();
+                    try {
+                        discardProject(projectId + "");
+                    } catch (Throwable discardError) {
+                        discardError.printStackTrace();
+                    }
+                    job.error = e.toString();
+                    job.phase = "failed";
+                } finally {
+                    reservedIds.remove(projectId);
+                    job.finishedAt = System.currentTimeMillis();
+                }
+            });
+        return jobId;
+    }
+
+    // Removes the project from project-list.json (in case the job failed
+    // after registering it) and deletes its plots along with the caches
+    // and indexes derived from them
+    private static void discardProject(String projectId) {
+        filterJsonFile("project-list.json", project -> !project.get("id").getAsString().equals(projectId));
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        PlotMutationLog.discard(projectId);
+        FileLocks.runWithWriteLock(plotFilename, () -> {
+                getJsonFile(plotFilename).delete();
+                JsonDocumentCache.invalidate(plotFilename);
+            });
+        PlotColumnStore.delete(projectId);
+        PlotSummaryIndex.forget(projectId);
+        UnanalyzedPlotIndex.forget(projectId);
+        PlotSpatialIndex.forget(projectId);
+        PlotClusterIndex.forget(projectId);
+        ProjectStats.forget(projectId);
+    }
+
+    public static void updateJob(String jobId, String phase, int percent) {
+        Job job = jobs.get(jobId);
+        if (job != null) {
+            job.phase = phase;
+            job.percent = percent;
+        }
+    }
+
+    public static JsonObject getStatus(String jobId) {
+        Job job = jobs.get(jobId);
+        JsonObject status = new JsonObject();
+        status.addProperty("jobId", jobId);
+        if (job != null) {
+            status.addProperty("projectId", job.projectId);
+            status.addProperty("phase", job.phase);
+            status.addProperty("percent", job.percent);
+            status.addProperty("error", job.error);
+        } else {
+            status.addProperty("phase", "unknown");
+        }
+        return status;
+    }
+
+}
@@ -0,0 +1,212 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.openforis.ceo.JsonUtils.adoptFileVersion;
+import static org.openforis.ceo.JsonUtils.getFileStat;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.toStream;
+import static org.openforis.ceo.JsonUtils.writeJsonFile;
+
+// Per-project counters behind getProjectStats, so that the endpoint
+// doesn't have to scan the plot file on every poll.
+//
+// - The plot counters (flagged, analyzed, contributors) are kept per
+//   project and tagged with the version of the plots they reflect (see
+//   PlotSource). PlotMutationLog.updatePlot and PlotColumnStore.updatePlot
+//   apply each change to them; any other change makes them stale, and
+//   they are recounted on their next use.
+// - The member count is remembered together with the versions of
+//   project-list.json, user-list.json and institution-list.json, so it
+//   is only recomputed after a change to one of them.
+// - Whenever a plot log is compacted, the counters for the new snapshot
+//   are saved to project-stats-<id>.json along with the snapshot's
+//   mtime and size. On startup they are reloaded from there for every
+//   plot file that hasn't changed since, and recounted for the rest.
+public class ProjectStats {
+
+    private static class Stats {
+        long version;
+        int plots;
+        int flagged;
+        int analyzed;
+        final Map<String, Integer> contributors = new HashMap<String, Integer>();
+    }
+
+    private static class Members {
+        final long[] versions;
+        final int count;
+
+        Members(long[] versions, int count) {
+            this.versions = versions;
+            this.count = count;
+        }
+    }
+
+    private static final String[] memberFiles = {"project-list.json", "user-list.json", "institution-list.json"};
+    private static final Map<String, Stats> plotStats = new ConcurrentHashMap<String, Stats>();
+    private static final Map<String, Members> memberCounts = new ConcurrentHashMap<String, Members>();
+
+    private static String getStatsFilename(String projectId) {
+        return "project-stats-" + projectId + ".json";
+    }
+
+    // Adds (sign = 1) or removes (sign = -1) a plot from the counters
+    private static void countPlot(Stats stats, boolean flagged, int analyses, String user, int sign) {
+        stats.plots += sign;
+        if (flagged) {
+            stats.flagged += sign;
+        }
+        if (analyses > 0) {
+            stats.analyzed += sign;
+        }
+        if (user != null) {
+            stats.contributors.compute(user, (u, count) -> count == null ? sign : (count + sign == 0 ? null : count + sign));
+        }
+    }
+
+    private static void countPlot(Stats stats, JsonObject plot, int sign) {
+        countPlot(stats,
+                  plot.get("flagged").getAsBoolean(),
+                  plot.get("analyses").getAsInt(),
+                  plot.has("user") && !plot.get("user").isJsonNull() ? plot.get("user").getAsString() : null,
+                  sign);
+    }
+
+    private static Stats countPlots(PlotSource plots) {
+        Stats stats = new Stats();
+        stats.version = plots.getVersion();
+        IntStream.range(0, plots.size())
+            .forEach(position -> countPlot(stats, plots.isFlagged(position), plots.getAnalyses(position), plots.getUser(position), 1));
+        return stats;
+    }
+
+    private static JsonObject statsToJson(Stats stats, long[] snapshotStat) {
+        JsonObject contributors = new JsonObject();
+        stats.contributors.forEach((user, count) -> contributors.addProperty(user, count));
+
+        JsonObject json = new JsonObject();
+        json.addProperty("plots", stats.plots);
+        json.addProperty("flagged", stats.flagged);
+        json.addProperty("analyzed", stats.analyzed);
+        json.add("contributors", contributors);
+        json.addProperty("snapshotModified", snapshotStat[0]);
+        json.addProperty("snapshotLength", snapshotStat[1]);
+        return json;
+    }
+
+    private static Stats statsFromJson(JsonObject json, long version) {
+        Stats stats = new Stats();
+        stats.version = version;
+        stats.plots = json.get("plots").getAsInt();
+        stats.flagged = json.get("flagged").getAsInt();
+        stats.analyzed = json.get("analyzed").getAsInt();
+        json.getAsJsonObject("contributors").entrySet()
+            .forEach(contributor -> stats.contributors.put(contributor.getKey(), contributor.getValue().getAsInt()));
+        return stats;
+    }
+
+    private static int getMemberCount(String projectId, IntSupplier countMembers) {
+        // Read the versions first, so a concurrent change can only make the count look stale
+        long[] versions = Stream.of(memberFiles).mapToLong(JsonUtils::getFileVersion).toArray();
+        return memberCounts.compute(projectId,
+                                    (id, members) -> members != null && Arrays.equals(members.versions, versions)
+                                                     ? members
+                                                     : new Members(versions, countMembers.getAsInt()))
+            .count;
+    }
+
+    // Returns the statistics reported by getProjectStats. countMembers is
+    // only called when one of the files it depends on has changed.
+    public static JsonObject getStats(String projectId, IntSupplier countMembers) {
+        int members = getMemberCount(projectId, countMembers);
+        return PlotSource.read(projectId, plots -> {
+                Stats stats = plotStats.compute(projectId,
+                                                (id, current) -> current != null && current.version == plots.getVersion()
+                                                                 ? current
+                                                                 : countPlots(plots));
+                return statsJson(stats.plots, stats.flagged, stats.analyzed, members, stats.contributors.size());
+            });
+    }
+
+    private static JsonObject statsJson(int plots, int flagged, int analyzed, int members, int contributors) {
+        JsonObject json = new JsonObject();
+        json.addProperty("flaggedPlots", flagged);
+        json.addProperty("analyzedPlots", analyzed);
+        json.addProperty("unanalyzedPlots", Math.max(0, plots - flagged - analyzed));
+        json.addProperty("members", members);
+        json.addProperty("contributors", contributors);
+        return json;
+    }
+
+    // Called by PlotMutationLog.updatePlot and PlotColumnStore.updatePlot,
+    // with the write lock of the plots' file held, after plot was replaced
+    // by updatedPlot (or summaries of them) and the version went from
+    // previousVersion to version
+    public static void plotUpdated(String projectId, long previousVersion, long version, JsonObject plot, JsonObject updatedPlot) {
+        Stats stats = plotStats.get(projectId);
+        if (stats != null && stats.version == previousVersion) {
+            countPlot(stats, plot, -1);
+            countPlot(stats, updatedPlot, 1);
+            stats.version = version;
+        } else if (stats != null) {
+            // Missed an earlier change, so recount on next use
+            plotStats.remove(projectId);
+        }
+    }
+
+    // Called by PlotMutationLog.compact after snapshot has been written to plot-data-<id>.json
+    public static void saveStats(String projectId, JsonElement snapshot) {
+        long[] snapshotStat = getFileStat(PlotMutationLog.getPlotFilename(projectId));
+        Stats stats = new Stats();
+        toStream(snapshot.getAsJsonArray()).forEach(plot -> countPlot(stats, plot, 1));
+        writeJsonFile(getStatsFilename(projectId), statsToJson(stats, snapshotStat));
+    }
+
+    private static void loadStats(String projectId) {
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        String statsFilename = getStatsFilename(projectId);
+        Optional<JsonObject> savedStats = getJsonFile(statsFilename).exists()
+            ? Optional.of(readJsonSnapshot(statsFilename).getAsJsonObject())
+            : Optional.empty();
+        long adoptedVersion = savedStats
+            .map(saved -> adoptFileVersion(plotFilename, saved.get("snapshotModified").getAsLong(), saved.get("snapshotLength").getAsLong()))
+            .orElse(-1L);
+        if (adoptedVersion >= 0) {
+            plotStats.put(projectId, statsFromJson(savedStats.get(), adoptedVersion));
+        } else {
+            // Missing or out of date, so recount from the plot file and save the result
+            long[] snapshotStat = getFileStat(plotFilename);
+            Stats stats = FileLocks.withReadLock(plotFilename, () -> countPlots(PlotMutationLog.readPlots(projectId)));
+            plotStats.put(projectId, stats);
+            writeJsonFile(statsFilename, statsToJson(stats, snapshotStat));
+        }
+    }
+
+    // Loads or rebuilds the counters of every project. Called once on
+    // startup, after PlotMutationLog.recover.
+    public static void init() {
+        File[] plotFiles = getJsonFile("").listFiles((dir, name) -> PlotMutationLog.isPlotFile(name));
+        Arrays.stream(plotFiles == null ? new File[]{} : plotFiles)
+            .map(plotFile -> PlotMutationLog.getProjectId(plotFile.getName()))
+            .forEach(ProjectStats::loadStats);
+    }
+
+    // Called when the project's plots are discarded (see ProjectJobs) or converted (see PlotColumnStore)
+    public static void forget(String projectId) {
+        plotStats.remove(projectId);
+        memberCounts.remove(projectId);
+        getJsonFile(getStatsFilename(projectId)).delete();
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+
+// Answers getAllProjects without evaluating the privacy rules of every
+// project on every request.
+//
+// - The project index keeps, as bitsets over the positions (ordinals)
+//   of the projects in project-list.json, the projects anybody may see
+//   (public and published) and, per institution, the projects its
+//   members and its admins may see. Each project's JSON is serialized
+//   once, without its closing brace, so a listing is a few bitset ORs
+//   plus string concatenation.
+// - The user's institution roles come from UserIndex, so no admin or
+//   member array is searched per request.
+// - Listings with a ListQuery walk the projects in the order of their
+//   ids and only serialize the requested fields of the requested page.
+// - The index remembers the version of project-list.json.
+//   publishProject, closeProject and archiveProject update it in place
+//   through projectUpdated; any other change to the file bumps its
+//   version and the index is rebuilt on its next use.
+public class ProjectVisibilityIndex {
+
+    private static class ProjectIndex {
+        long version;
+        final String[] fragments;
+        final JsonObject[] projects;
+        final int[] ids;
+        int[] idOrder;
+        final int[] institutions;
+        final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+        final BitSet publicProjects = new BitSet();
+        final Map<Integer, BitSet> memberProjects = new HashMap<Integer, BitSet>();
+        final Map<Integer, BitSet> adminProjects = new HashMap<Integer, BitSet>();
+        final Map<Integer, BitSet> institutionProjects = new HashMap<Integer, BitSet>();
+
+        ProjectIndex(long version, int numProjects) {
+            this.version = version;
+            this.fragments = new String[numProjects];
+            this.projects = new JsonObject[numProjects];
+            this.ids = new int[numProjects];
+            this.institutions = new int[numProjects];
+        }
+    }
+
+    private static final AtomicReference<ProjectIndex> projectIndex = new AtomicReference<ProjectIndex>();
+
+    private static BitSet getBits(Map<Integer, BitSet> bitsets, int institutionId) {
+        return bitsets.computeIfAbsent(institutionId, id -> new BitSet());
+    }
+
+    // Same rules as getAllProjects had when it checked every project
+    private static void indexProject(ProjectIndex index, int ordinal, JsonObject project) {
+        JsonObject fragment = new JsonObject();
+        project.entrySet().stream()
+            .filter(field -> !field.getKey().equals("editable"))
+            .forEach(field -> fragment.add(field.getKey(), field.getValue()));
+        index.projects[ordinal] = fragment;
+        index.fragments[ordinal] = withoutClosingBrace(fragment);
+        index.institutions[ordinal] = project.get("institution").getAsInt();
+
+        int institutionId = index.institutions[ordinal];
+        boolean archived = project.get("archived").getAsBoolean();
+        String privacyLevel = project.get("privacyLevel").getAsString();
+        String availability = project.get("availability").getAsString();
+        getBits(index.institutionProjects, institutionId).set(ordinal);
+        index.publicProjects.set(ordinal,
+                                 !archived && privacyLevel.equals("public") && availability.equals("published"));
+        getBits(index.memberProjects, institutionId).set(ordinal,
+                                                         !archived
+                                                         && (privacyLevel.equals("public") || privacyLevel.equals("institution"))
+                                                         && availability.equals("published"));
+        getBits(index.adminProjects, institutionId).set(ordinal,
+                                                        !archived
+                                                        && (privacyLevel.equals("public") || privacyLevel.equals("private") || privacyLevel.equals("institution"))
+                                                        && (availability.equals("unpublished") || availability.equals("published") || availability.equals("closed")));
+    }
+
+    private static ProjectIndex buildProjectIndex(JsonArray projects, long version) {
+        ProjectIndex index = new ProjectIndex(version, projects.size());
+        IntStream.range(0, projects.size()).forEach(ordinal -> {
+                JsonObject project = projects.get(ordinal).getAsJsonObject();
+                index.ordinals.put(project.get("id").getAsString(), ordinal);
+                index.ids[ordinal] = project.get("id").getAsInt();
+                indexProject(index, ordinal, project);
+            });
+        index.idOrder = IntStream.range(0, projects.size()).boxed()
+            .sorted(Comparator.comparingInt(ordinal -> index.ids[ordinal]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+        return index;
+    }
+
+    private static String withoutClosingBrace(JsonObject project) {
+        String json = project.toString();
+        return json.substring(0, json.length() - 1);
+    }
+
+    // Returns the JSON array of the projects userId (or an anonymous
+    // user if empty) may see, with their editable field, optionally
+    // only those of institutionId, limited to the page and fields of query
+    public static String getVisibleProjects(String userId, String institutionId, ListQuery query) {
+        Map<Integer, String> roles = userId.equals("") ? Collections.emptyMap() : UserIndex.getInstitutionRoles(Integer.parseInt(userId));
+        return FileLocks.withReadLock("project-list.json", () -> {
+                long version = getFileVersion("project-list.json");
+                ProjectIndex index = projectIndex.updateAndGet(current -> current != null && current.version == version
+                                                               ? current
+                                                               : buildProjectIndex(readJsonSnapshot("project-list.json").getAsJsonArray(), version));
+                BitSet visible = (BitSet) index.publicProjects.clone();
+                roles.forEach((institution, role) -> visible.or((role.equals("admin") ? index.adminProjects : index.memberProjects)
+                                                                 .getOrDefault(institution, new BitSet())));
+                if (!institutionId.equals("")) {
+                    visible.and(index.institutionProjects.getOrDefault(Integer.parseInt(institutionId), new BitSet()));
+                }
+                StringBuilder json = new StringBuilder("[");
+                query.page(IntStream.of(index.idOrder).filter(visible::get).boxed(), ordinal -> index.ids[ordinal])
+                    .forEach(ordinal -> {
+                            String fragment = query.fields == null
+                                ? index.fragments[ordinal]
+                                : withoutClosingBrace(query.project(index.projects[ordinal]));
+                            json.append(json.length() > 1 ? "," : "").append(fragment);
+                            if (query.includes("editable")) {
+                                json.append(fragment.length() > 1 ? "," : "")
+                                    .append("\"editable\":")
+                                    .append("admin".equals(roles.get(index.institutions[ordinal])));
+                            }
+                            json.append('}');
+                        });
+                return json.append(']').toString();
+            });
+    }
+
+    // Called with project-list.json's write lock held, after the project
+    // with id projectId was changed in place and the file's version went
+    // from previousVersion to version
+    public static void projectUpdated(long previousVersion, long version, String projectId) {
+        ProjectIndex index = projectIndex.get();
+        JsonArray projects = readJsonSnapshot("project-list.json").getAsJsonArray();
+        Integer ordinal = index != null ? index.ordinals.get(projectId) : null;
+        if (index != null && index.version == previousVersion && ordinal != null && ordinal < projects.size()
+            && projects.get(ordinal).getAsJsonObject().get("id").getAsString().equals(projectId)) {
+            indexProject(index, ordinal, projects.get(ordinal).getAsJsonObject());
+            index.version = version;
+        } else {
+            // Missed an earlier change, so rebuild on next use
+            projectIndex.set(null);
+        }
+    }
+
+}
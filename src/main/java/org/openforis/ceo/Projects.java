@@ -4,114 +4,75 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.PrecisionModel;
+import com.google.gson.stream.JsonWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
 import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
-import java.util.stream.Collector;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import javax.servlet.MultipartConfigElement;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 import spark.Request;
 import spark.Response;
+import static org.openforis.ceo.ETags.addVary;
 import static org.openforis.ceo.JsonUtils.expandResourcePath;
-import static org.openforis.ceo.JsonUtils.filterJsonArray;
 import static org.openforis.ceo.JsonUtils.findInJsonArray;
-import static org.openforis.ceo.JsonUtils.getNextId;
-import static org.openforis.ceo.JsonUtils.intoJsonArray;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
 import static org.openforis.ceo.JsonUtils.mapJsonArray;
 import static org.openforis.ceo.JsonUtils.mapJsonFile;
 import static org.openforis.ceo.JsonUtils.parseJson;
 import static org.openforis.ceo.JsonUtils.readJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.streamJsonFile;
+import static org.openforis.ceo.JsonUtils.syncJsonFile;
 import static org.openforis.ceo.JsonUtils.toElementStream;
 import static org.openforis.ceo.JsonUtils.toStream;
 import static org.openforis.ceo.JsonUtils.writeJsonFile;
 import static org.openforis.ceo.PartUtils.partToString;
 import static org.openforis.ceo.PartUtils.partsToJsonObject;
 import static org.openforis.ceo.PartUtils.writeFilePart;
+import static org.openforis.ceo.Reprojection.reprojectCoordinates;
 
 public class Projects {
 
+    // The visibility rules are evaluated ahead of time (see ProjectVisibilityIndex).
+    // Accepts the fields, limit and after parameters of ListQuery.
     public static String getAllProjects(Request req, Response res) {
         String userId = req.queryParams("userId");
         String institutionId = req.queryParams("institutionId");
-        JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
-
-        if (userId.equals("")) {
-            // Not logged in
-            Stream<JsonObject> filteredProjects = toStream(projects)
-                .filter(project -> project.get("archived").getAsBoolean() == false
-                                   && project.get("privacyLevel").getAsString().equals("public")
-                                   && project.get("availability").getAsString().equals("published"))
-                .map(project -> {
-                        project.addProperty("editable", false);
-                        return project;
-                    });
-            if (institutionId.equals("")) {
-                return filteredProjects.collect(intoJsonArray).toString();
-            } else {
-                return filteredProjects
-                    .filter(project -> project.get("institution").getAsString().equals(institutionId))
-                    .collect(intoJsonArray)
-                    .toString();
-            }
-        } else {
-            Map<Integer, String> institutionRoles = Users.getInstitutionRoles(Integer.parseInt(userId));
-            Stream<JsonObject> filteredProjects = toStream(projects)
-                .filter(project -> project.get("archived").getAsBoolean() == false)
-                .filter(project -> {
-                        String role = institutionRoles.getOrDefault(project.get("institution").getAsInt(), "");
-                        String privacyLevel = project.get("privacyLevel").getAsString();
-                        String availability = project.get("availability").getAsString();
-                        if (role.equals("admin")) {
-                            return (privacyLevel.equals("public") || privacyLevel.equals("private") || privacyLevel.equals("institution"))
-                                && (availability.equals("unpublished") || availability.equals("published") || availability.equals("closed"));
-                        } else if (role.equals("member")) {
-                            return (privacyLevel.equals("public") || privacyLevel.equals("institution")) && availability.equals("published");
-                        } else {
-                            return privacyLevel.equals("public") && availability.equals("published");
-                        }
-                    })
-                .map(project -> {
-                        String role = institutionRoles.getOrDefault(project.get("institution").getAsInt(), "");
-                        if (role.equals("admin")) {
-                            project.addProperty("editable", true);
-                        } else {
-                            project.addProperty("editable", false);
-                        }
-                        return project;
-                    });
-            if (institutionId.equals("")) {
-                return filteredProjects.collect(intoJsonArray).toString();
-            } else {
-                return filteredProjects
-                    .filter(project -> project.get("institution").getAsString().equals(institutionId))
-                    .collect(intoJsonArray)
-                    .toString();
-            }
-        }
+        ListQuery query = ListQuery.fromRequest(req);
+        String projects = ProjectVisibilityIndex.getVisibleProjects(userId, institutionId, query);
+        query.setNextCursor(res);
+        return projects;
     }
 
     public static String getProjectById(Request req, Response res) {
         String projectId = req.params(":id");
-        JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
+        JsonArray projects = readJsonSnapshot("project-list.json").getAsJsonArray();
         Optional<JsonObject> matchingProject = findInJsonArray(projects, project -> project.get("id").getAsString().equals(projectId));
         if (matchingProject.isPresent()) {
             return matchingProject.get().toString();
@@ -120,25 +81,98 @@ public class Projects {
         }
     }
 
-    public static String getProjectPlots(Request req, Response res) {
+    // Plot lists are sent in the binary format of PlotCodec to clients
+    // that accept it, and as JSON otherwise. Sets the response headers
+    // and returns true for the binary format.
+    private static boolean usePlotCodec(Request req, Response res) {
+        addVary(res, "Accept");
+        if (PlotCodec.isAccepted(req)) {
+            res.type(PlotCodec.mediaType);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private static Object encodePlots(boolean binary, JsonArray plots) {
+        return binary ? PlotCodec.encode(plots) : plots.toString();
+    }
+
+    // Projects whose plots were converted to a PlotColumnStore are read
+    // and updated through it, all others through their plot-data-<id>.json
+    // file (see PlotMutationLog). The indexes behind picking, counting,
+    // clustering and box queries cover both (see PlotSource).
+    private static void forEachPlot(String projectId, Consumer<JsonObject> action) {
+        if (PlotColumnStore.exists(projectId)) {
+            PlotColumnStore.forEachPlot(projectId, action);
+        } else {
+            PlotMutationLog.forEachPlot(projectId, action);
+        }
+    }
+
+    private static void updatePlot(String projectId, String plotId, Function<JsonObject, JsonObject> makeMutation) {
+        if (PlotColumnStore.exists(projectId)) {
+            PlotColumnStore.updatePlot(projectId, plotId, makeMutation);
+        } else {
+            PlotMutationLog.updatePlot(projectId, plotId, makeMutation);
+        }
+    }
+
+    // The version of the response of getProjectPlots, for its ETag and
+    // its cached compressed copies. Uses the in-memory version of the
+    // plots rather than checking plot-data-<id>.json, since compactions
+    // rewrite that file.
+    public static String getProjectPlotsVersion(Request req, Response res) {
+        addVary(res, "Accept");
+        return PlotColumnStore.getPlotDataVersion(req.params(":id")) + (PlotCodec.isAccepted(req) ? ".binary" : ".json");
+    }
+
+    // Returns plot summaries without samples (see PlotSummaryIndex).
+    // Identical requests that arrive while one is being computed share their result (see SingleFlight).
+    public static Object getProjectPlots(Request req, Response res) {
         String projectId = req.params(":id");
         int maxPlots = Integer.parseInt(req.params(":max"));
-        JsonArray plots = readJsonFile("plot-data-" + projectId + ".json").getAsJsonArray();
-        int numPlots = plots.size();
-        if (numPlots > maxPlots) {
-            double stepSize = 1.0 * numPlots / maxPlots;
-            return Stream.iterate(0.0, i -> i + stepSize)
-                .limit(maxPlots)
-                .map(i -> plots.get(Math.toIntExact(Math.round(i))))
-                .collect(intoJsonArray)
-                .toString();
+        boolean binary = usePlotCodec(req, res);
+        return SingleFlight.run("get-project-plots:" + projectId + ":" + maxPlots + ":" + (binary ? "binary" : "json")
+                                + "@" + PlotColumnStore.getPlotDataVersion(projectId),
+                                () -> encodePlots(binary, PlotColumnStore.exists(projectId)
+                                                          ? PlotColumnStore.getSummaries(projectId, maxPlots)
+                                                          : PlotSummaryIndex.getSummaries(projectId, maxPlots)));
+    }
+
+    public static String getPlotSamples(Request req, Response res) {
+        String projectId = req.params(":projectId");
+        long plotId = Long.parseLong(req.params(":plotId"));
+        JsonArray projects = readJsonSnapshot("project-list.json").getAsJsonArray();
+        Optional<JsonObject> matchingProject = findInJsonArray(projects, project -> project.get("id").getAsString().equals(projectId));
+        Optional<JsonObject> matchingPlot = PlotColumnStore.exists(projectId)
+            ? PlotColumnStore.getPlot(projectId, plotId)
+            : PlotSummaryIndex.getPlot(projectId, plotId);
+        if (matchingProject.isPresent() && matchingPlot.isPresent()) {
+            return SamplePoints.withSamplePoints(matchingProject.get(), matchingPlot.get()).get("samples").toString();
         } else {
-            return plots.toString();
+            return "";
         }
     }
 
+    // Query parameters: bbox=lonMin,latMin,lonMax,latMax (WGS84) and limit
+    public static Object getProjectPlotsInBbox(Request req, Response res) {
+        String projectId = req.params(":id");
+        double[] bbox = Arrays.stream(req.queryParams("bbox").split(",")).mapToDouble(Double::parseDouble).toArray();
+        int limit = Integer.parseInt(req.queryParams("limit"));
+        return encodePlots(usePlotCodec(req, res), PlotSpatialIndex.getPlotsInBox(projectId, bbox[0], bbox[1], bbox[2], bbox[3], limit));
+    }
+
+    // Query parameters: zoom (map zoom level) and bbox=lonMin,latMin,lonMax,latMax (WGS84)
+    public static String getProjectPlotClusters(Request req, Response res) {
+        String projectId = req.params(":id");
+        int zoom = Integer.parseInt(req.queryParams("zoom"));
+        double[] bbox = Arrays.stream(req.queryParams("bbox").split(",")).mapToDouble(Double::parseDouble).toArray();
+        return PlotClusterIndex.getClusters(projectId, zoom, bbox[0], bbox[1], bbox[2], bbox[3]).toString();
+    }
+
     private static String[] getProjectUsers(String projectId) {
-        JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
+        JsonArray projects = readJsonSnapshot("project-list.json").getAsJsonArray();
         Optional<JsonObject> matchingProject = findInJsonArray(projects, project -> project.get("id").getAsString().equals(projectId));
         if (matchingProject.isPresent()) {
             JsonObject project = matchingProject.get();
@@ -151,10 +185,10 @@ public class Projects {
                 return new String[]{};
             } else if (privacyLevel.equals("public")) {
                 // return all users
-                JsonArray users = readJsonFile("user-list.json").getAsJsonArray();
+                JsonArray users = readJsonSnapshot("user-list.json").getAsJsonArray();
                 return toStream(users).map(user -> user.get("id").getAsString()).toArray(String[]::new);
             } else {
-                JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
+                JsonArray institutions = readJsonSnapshot("institution-list.json").getAsJsonArray();
                 Optional<JsonObject> matchingInstitution = findInJsonArray(institutions,
                                                                            institution ->
                                                                            institution.get("id").getAsString().equals(institutionId));
@@ -189,67 +223,138 @@ public class Projects {
         }
     }
 
+    // Identical requests that arrive while one is being computed share its result (see SingleFlight)
     public static String getProjectStats(Request req, Response res) {
         String projectId = req.params(":id");
-        JsonArray plots = readJsonFile("plot-data-" + projectId + ".json").getAsJsonArray();
-        JsonArray flaggedPlots = filterJsonArray(plots, plot -> plot.get("flagged").getAsBoolean() == true);
-        JsonArray analyzedPlots = filterJsonArray(plots, plot -> plot.get("analyses").getAsInt() > 0);
-        String[] members = getProjectUsers(projectId);
-        String[] contributors = toStream(plots)
-            .filter(plot -> !plot.get("user").isJsonNull())
-            .map(plot -> plot.get("user").getAsString())
-            .distinct()
-            .toArray(String[]::new);
-
-        JsonObject stats = new JsonObject();
-        stats.addProperty("flaggedPlots", flaggedPlots.size());
-        stats.addProperty("analyzedPlots", analyzedPlots.size());
-        stats.addProperty("unanalyzedPlots", Math.max(0, plots.size() - flaggedPlots.size() - analyzedPlots.size()));
-        stats.addProperty("members", members.length);
-        stats.addProperty("contributors", contributors.length);
-        return stats.toString();
+        String versions = PlotColumnStore.getPlotDataVersion(projectId) + ":"
+            + Stream.of("project-list.json", "user-list.json", "institution-list.json")
+            .map(filename -> getFileVersion(filename) + "")
+            .collect(Collectors.joining(":"));
+        return SingleFlight.run("get-project-stats:" + projectId + "@" + versions,
+                                () -> ProjectStats.getStats(projectId, () -> getProjectUsers(projectId).length).toString());
     }
 
+    // Returns the picked plot without its samples, which the collection
+    // page fetches from getPlotSamples. Returns "done" when all plots
+    // have been analyzed (or flagged), and
+    // "leased" with a Retry-After header when the remaining ones are all
+    // leased to other collectors. The pickers only offer unanalyzed plots
+    // to claim, so any refused claim means one of them was leased.
     public static String getUnanalyzedPlot(Request req, Response res) {
         String projectId = req.params(":id");
-        JsonArray plots = readJsonFile("plot-data-" + projectId + ".json").getAsJsonArray();
-        JsonArray unanalyzedPlots = filterJsonArray(plots, plot -> plot.get("flagged").getAsBoolean() == false
-                                                                   && plot.get("analyses").getAsInt() == 0);
-        int numPlots = unanalyzedPlots.size();
-        if (numPlots > 0) {
-            int randomIndex = (int) Math.floor(numPlots * Math.random());
-            return unanalyzedPlots.get(randomIndex).toString();
+        String leaseOwner = getLeaseOwner(req);
+        long[] retrySeconds = {Long.MAX_VALUE}; // Have to use an array to move the value onto the heap
+        Predicate<JsonObject> claim = plot -> {
+            String plotId = plot.get("id").getAsString();
+            if (PlotLeases.tryAcquire(projectId, plotId, leaseOwner)) {
+                return true;
+            } else {
+                retrySeconds[0] = Math.min(retrySeconds[0], Math.max(1L, PlotLeases.getRemainingSeconds(projectId, plotId)));
+                return false;
+            }
+        };
+        Optional<JsonObject> unanalyzedPlot = UnanalyzedPlotIndex.pickPlot(projectId, claim);
+        if (unanalyzedPlot.isPresent()) {
+            JsonObject summary = new JsonObject();
+            unanalyzedPlot.get().entrySet().stream()
+                .filter(field -> !field.getKey().equals("samples") && !field.getKey().equals("sampleSeed"))
+                .forEach(field -> summary.add(field.getKey(), field.getValue()));
+            res.header("X-Plot-Lease-Seconds", PlotLeases.getTtlSeconds() + "");
+            return summary.toString();
+        } else if (retrySeconds[0] < Long.MAX_VALUE) {
+            res.header("Retry-After", Math.min(retrySeconds[0], PlotLeases.getRetrySeconds()) + "");
+            return "leased";
         } else {
             return "done";
         }
     }
 
-    private static Collector<String, ?, Map<String, Long>> countDistinct =
-        Collectors.groupingBy(Function.identity(), Collectors.counting());
+    // Plots are leased to the logged in user or, failing that, to the browser session
+    private static String getLeaseOwner(Request req) {
+        String userName = req.session().attribute("username");
+        return userName != null ? userName : req.session().id();
+    }
+
+    public static String renewPlotLease(Request req, Response res) {
+        JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
+        String projectId = jsonInputs.get("projectId").getAsString();
+        String plotId = jsonInputs.get("plotId").getAsString();
 
-    private static JsonObject getValueDistribution(JsonArray samples, Map<Integer, String> sampleValueNames) {
-        Map<String, Long> valueCounts = toStream(samples)
-            .map(sample -> sample.has("value") ? sample.get("value").getAsInt() : -1)
-            .map(value -> sampleValueNames.getOrDefault(value, "NoValue"))
-            .collect(countDistinct);
-        JsonObject valueDistribution = new JsonObject();
-        valueCounts.forEach((name, count) -> valueDistribution.addProperty(name, 100.0 * count / samples.size()));
-        return valueDistribution;
+        if (PlotLeases.renew(projectId, plotId, getLeaseOwner(req))) {
+            return PlotLeases.getTtlSeconds() + "";
+        } else {
+            return "expired";
+        }
     }
 
-    private static synchronized void writeCsvFile(String filename, String header, String[] rows) {
-        String csvDataDir = expandResourcePath("/public/downloads/");
-        try (FileWriter fileWriter = new FileWriter(new File(csvDataDir, filename))) {
-            fileWriter.write(header + "\n");
-            fileWriter.write(Arrays.stream(rows).collect(Collectors.joining("\n")));
+    // Writes a CSV file to /public/downloads through writeRows, one row
+    // at a time. The rows go to a temporary file, which then replaces
+    // filename, so concurrent exports don't have to wait for each other.
+    private static void writeCsvFile(String filename, String header, Consumer<PrintWriter> writeRows) {
+        File csvFile = new File(expandResourcePath("/public/downloads/"), filename);
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(csvFile.getParentFile().toPath(), "." + filename + ".", ".tmp");
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))) {
+                writer.print(header);
+                writeRows.accept(writer);
+                if (writer.checkError()) {
+                    throw new IOException("Failed to write " + filename);
+                }
+            }
+            Files.move(tempFile, csvFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            try {
+                if (tempFile != null) {
+                    Files.deleteIfExists(tempFile);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // Appends one CSV row for plot to row. Sample values are counted per
+    // distinct value name: valueSlots maps each sample value id to its
+    // name's counter, and labelSlots each label column to its counter.
+    private static void appendPlotSummary(StringBuilder row, JsonObject plot, String plotSize, String plotShape,
+                                          Map<Integer, Integer> valueSlots, int noValueSlot, int[] labelSlots, int[] valueCounts) {
+        JsonArray samples = plot.get("samples").getAsJsonArray();
+        JsonArray plotCenter = parseJson(plot.get("center").getAsString()).getAsJsonObject().get("coordinates").getAsJsonArray();
+        Arrays.fill(valueCounts, 0);
+        for (JsonElement sample : samples) {
+            JsonElement value = sample.getAsJsonObject().get("value");
+            valueCounts[value == null ? noValueSlot : valueSlots.getOrDefault(value.getAsInt(), noValueSlot)] += 1;
+        }
+        row.append(plot.get("id").getAsInt())
+            .append(',').append(plotCenter.get(0).getAsDouble())
+            .append(',').append(plotCenter.get(1).getAsDouble())
+            .append(',').append(plotSize)
+            .append(',').append(plotShape)
+            .append(',').append(plot.get("flagged").getAsBoolean())
+            .append(',').append(plot.get("analyses").getAsInt())
+            .append(',').append(samples.size())
+            .append(',').append(plot.get("user").isJsonNull() ? "" : plot.get("user").getAsString());
+        for (int labelSlot : labelSlots) {
+            row.append(',').append(samples.size() == 0 ? 0.0 : 100.0 * valueCounts[labelSlot] / samples.size());
         }
     }
 
+    // Identical requests that arrive while one is being computed share its result (see SingleFlight)
     public static String dumpProjectAggregateData(Request req, Response res) {
         String projectId = req.params(":id");
-        JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
+        return SingleFlight.run("dump-project-aggregate-data:" + projectId
+                                + "@" + PlotColumnStore.getPlotDataVersion(projectId)
+                                + ":" + getFileVersion("project-list.json"),
+                                () -> exportProjectAggregateData(projectId));
+    }
+
+    // NOTE: The plots are streamed from disk into the CSV file, so the
+    //       memory used doesn't depend on the number of plots.
+    private static String exportProjectAggregateData(String projectId) {
+        JsonArray projects = readJsonSnapshot("project-list.json").getAsJsonArray();
         Optional<JsonObject> matchingProject = findInJsonArray(projects, project -> project.get("id").getAsString().equals(projectId));
 
         if (matchingProject.isPresent()) {
@@ -261,46 +366,38 @@ public class Projects {
                                           sampleValue -> sampleValue.get("name").getAsString(),
                                           (a, b) -> b));
 
-            JsonArray plots = readJsonFile("plot-data-" + projectId + ".json").getAsJsonArray();
-            JsonArray plotSummaries = mapJsonArray(plots,
-                                                   plot -> {
-                                                       JsonArray samples = plot.get("samples").getAsJsonArray();
-                                                       JsonObject plotCenter = parseJson(plot.get("center").getAsString()).getAsJsonObject();
-                                                       JsonObject plotSummary = new JsonObject();
-                                                       plotSummary.addProperty("plot_id", plot.get("id").getAsInt());
-                                                       plotSummary.addProperty("center_lon", plotCenter.get("coordinates").getAsJsonArray().get(0).getAsDouble());
-                                                       plotSummary.addProperty("center_lat", plotCenter.get("coordinates").getAsJsonArray().get(1).getAsDouble());
-                                                       plotSummary.addProperty("size_m", project.get("plotSize").getAsDouble());
-                                                       plotSummary.addProperty("shape", project.get("plotShape").getAsString());
-                                                       plotSummary.addProperty("flagged", plot.get("flagged").getAsBoolean());
-                                                       plotSummary.addProperty("analyses", plot.get("analyses").getAsInt());
-                                                       plotSummary.addProperty("sample_points", samples.size());
-                                                       plotSummary.add("user_id", plot.get("user"));
-                                                       plotSummary.add("distribution", getValueDistribution(samples, sampleValueNames));
-                                                       return plotSummary;
-                                                   });
-
             String[] fields = {"plot_id", "center_lon", "center_lat", "size_m", "shape", "flagged", "analyses", "sample_points", "user_id"};
             String[] labels = sampleValueNames.entrySet().stream().sorted(Map.Entry.comparingByKey()).map(Map.Entry::getValue).toArray(String[]::new);
 
-            String csvHeader = Stream.concat(Arrays.stream(fields), Arrays.stream(labels)).map(String::toUpperCase).collect(Collectors.joining(","));
+            // Give each distinct value name (plus samples without a value) its own counter
+            List<String> valueNames = Stream.concat(Arrays.stream(labels), Stream.of("NoValue")).distinct().collect(Collectors.toList());
+            Map<Integer, Integer> valueSlots = sampleValueNames.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> valueNames.indexOf(entry.getValue())));
+            int noValueSlot = valueNames.indexOf("NoValue");
+            int[] labelSlots = Arrays.stream(labels).mapToInt(valueNames::indexOf).toArray();
 
-            String[] csvRows = toStream(plotSummaries)
-                .map(plotSummary -> {
-                        Stream<String> fieldStream = Arrays.stream(fields);
-                        Stream<String> labelStream = Arrays.stream(labels);
-                        JsonObject distribution = plotSummary.get("distribution").getAsJsonObject();
-                        return Stream.concat(fieldStream.map(field -> plotSummary.get(field).isJsonNull() ? "" : plotSummary.get(field).getAsString()),
-                                             labelStream.map(label -> distribution.has(label) ? distribution.get(label).getAsString() : "0.0"))
-                                     .collect(Collectors.joining(","));
-                    })
-                .toArray(String[]::new);
+            String csvHeader = Stream.concat(Arrays.stream(fields), Arrays.stream(labels)).map(String::toUpperCase).collect(Collectors.joining(","));
 
             String projectName = project.get("name").getAsString().replace(" ", "-").replace(",", "").toLowerCase();
             String currentDate = LocalDate.now().toString();
-            String outputFileName = "ceo-" + projectName + "-" + currentDate + ".csv";
 
-            writeCsvFile(outputFileName, csvHeader, csvRows);
+            String plotSize = project.get("plotSize").getAsDouble() + "";
+            String plotShape = project.get("plotShape").getAsString();
+
+            // Reuse the last export of this project if neither its plots nor its settings have changed since
+            String outputFileName = ExportCache.getExport(
+                project,
+                dataVersion -> "ceo-" + projectName + "-" + currentDate + "-" + projectId + "-" + dataVersion + ".csv",
+                filename -> writeCsvFile(filename, csvHeader, writer -> {
+                        StringBuilder row = new StringBuilder();
+                        int[] valueCounts = new int[valueNames.size()];
+                        forEachPlot(projectId, plot -> {
+                                row.setLength(0);
+                                row.append('\n');
+                                appendPlotSummary(row, plot, plotSize, plotShape, valueSlots, noValueSlot, labelSlots, valueCounts);
+                                writer.append(row);
+                            });
+                    }));
 
             return Server.documentRoot + "/downloads/" + outputFileName;
         } else {
@@ -308,93 +405,81 @@ public class Projects {
         }
     }
 
-    public static synchronized String publishProject(Request req, Response res) {
+    // Changes the project with id projectId in project-list.json and
+    // keeps ProjectVisibilityIndex up to date
+    private static void updateProject(String projectId, Consumer<JsonObject> update) {
+        FileLocks.runWithWriteLock("project-list.json", () -> {
+                long previousVersion = getFileVersion("project-list.json");
+                mapJsonFile("project-list.json",
+                            project -> {
+                                if (project.get("id").getAsString().equals(projectId)) {
+                                    update.accept(project);
+                                }
+                                return project;
+                            });
+                ProjectVisibilityIndex.projectUpdated(previousVersion, getFileVersion("project-list.json"), projectId);
+            });
+    }
+
+    public static String publishProject(Request req, Response res) {
         String projectId = req.params(":id");
-        mapJsonFile("project-list.json",
-                    project -> {
-                        if (project.get("id").getAsString().equals(projectId)) {
-                            project.addProperty("availability", "published");
-                            return project;
-                        } else {
-                            return project;
-                        }
-                    });
+        updateProject(projectId, project -> {
+                project.addProperty("availability", "published");
+            });
         return "";
     }
 
-    public static synchronized String closeProject(Request req, Response res) {
+    public static String closeProject(Request req, Response res) {
         String projectId = req.params(":id");
-        mapJsonFile("project-list.json",
-                    project -> {
-                        if (project.get("id").getAsString().equals(projectId)) {
-                            project.addProperty("availability", "closed");
-                            return project;
-                        } else {
-                            return project;
-                        }
-                    });
+        updateProject(projectId, project -> {
+                project.addProperty("availability", "closed");
+            });
         return "";
     }
 
-    public static synchronized String archiveProject(Request req, Response res) {
+    public static String archiveProject(Request req, Response res) {
         String projectId = req.params(":id");
-        mapJsonFile("project-list.json",
-                    project -> {
-                        if (project.get("id").getAsString().equals(projectId)) {
-                            project.addProperty("availability", "archived");
-                            project.addProperty("archived", true);
-                            return project;
-                        } else {
-                            return project;
-                        }
-                    });
+        updateProject(projectId, project -> {
+                project.addProperty("availability", "archived");
+                project.addProperty("archived", true);
+            });
         return "";
     }
 
-    public static synchronized String addUserSamples(Request req, Response res) {
+    // NOTE: Plot changes are appended to the project's PlotMutationLog rather than rewriting plot-data-<id>.json
+    //       (or written in place into its PlotColumnStore)
+    public static String addUserSamples(Request req, Response res) {
         JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
         String projectId = jsonInputs.get("projectId").getAsString();
         String plotId = jsonInputs.get("plotId").getAsString();
         String userName = jsonInputs.get("userId").getAsString();
         JsonObject userSamples = jsonInputs.get("userSamples").getAsJsonObject();
 
-        mapJsonFile("plot-data-" + projectId + ".json",
-                    plot -> {
-                        if (plot.get("id").getAsString().equals(plotId)) {
-                            int currentAnalyses = plot.get("analyses").getAsInt();
-                            plot.addProperty("analyses", currentAnalyses + 1);
-                            plot.addProperty("user", userName);
-                            JsonArray samples = plot.get("samples").getAsJsonArray();
-                            JsonArray updatedSamples = mapJsonArray(samples,
-                                                                    sample -> {
-                                                                        String sampleId = sample.get("id").getAsString();
-                                                                        sample.addProperty("value", userSamples.get(sampleId).getAsInt());
-                                                                        return sample;
-                                                                    });
-                            plot.add("samples", updatedSamples);
-                            return plot;
-                        } else {
-                            return plot;
-                        }
-                    });
+        updatePlot(projectId, plotId,
+                   plot -> {
+                       JsonObject mutation = new JsonObject();
+                       mutation.addProperty("analyses", plot.get("analyses").getAsInt() + 1);
+                       mutation.addProperty("user", userName);
+                       mutation.add("samples", userSamples);
+                       return mutation;
+                   });
+        PlotLeases.release(projectId, plotId, getLeaseOwner(req));
 
         return "";
     }
 
-    public static synchronized String flagPlot(Request req, Response res) {
+    public static String flagPlot(Request req, Response res) {
         JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
         String projectId = jsonInputs.get("projectId").getAsString();
         String plotId = jsonInputs.get("plotId").getAsString();
 
-        mapJsonFile("plot-data-" + projectId + ".json",
-                    plot -> {
-                        if (plot.get("id").getAsString().equals(plotId)) {
-                            plot.addProperty("flagged", true);
-                            return plot;
-                        } else {
-                            return plot;
-                        }
-                    });
+        updatePlot(projectId, plotId,
+                   plot -> {
+                       JsonObject mutation = new JsonObject();
+                       mutation.addProperty("flagged", true);
+                       return mutation;
+                   });
+        PlotLeases.release(projectId, plotId, getLeaseOwner(req));
 
         return "";
     }
@@ -404,7 +489,7 @@ public class Projects {
         return () -> { counter[0] += 1; return counter[0]; };
     }
 
-    private static JsonObject makeGeoJsonPoint(double lon, double lat) {
+    static JsonObject makeGeoJsonPoint(double lon, double lat) {
         JsonArray coordinates = new JsonArray();
         coordinates.add(lon);
         coordinates.add(lat);
@@ -461,137 +546,150 @@ public class Projects {
         return imageryAttribution.get(baseMapSource);
     }
 
-    private static Double[] reprojectPoint(Double[] point, int fromEPSG, int toEPSG) {
-        try {
-            Point oldPoint = (new GeometryFactory(new PrecisionModel(), fromEPSG)).createPoint(new Coordinate(point[0], point[1]));
-            CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:" + fromEPSG, true);
-            CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:" + toEPSG, true);
-            MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS);
-            Coordinate newPoint = JTS.transform(oldPoint, transform).getCoordinate();
-            return new Double[]{newPoint.x, newPoint.y};
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    private static double[] reprojectBounds(double left, double bottom, double right, double top, int fromEPSG, int toEPSG) {
+        return reprojectCoordinates(new double[]{left, bottom, right, top}, fromEPSG, toEPSG);
     }
 
-    private static Double[] reprojectBounds(double left, double bottom, double right, double top, int fromEPSG, int toEPSG) {
-        Double[] lowerLeft = reprojectPoint(new Double[]{left, bottom}, fromEPSG, toEPSG);
-        Double[] upperRight = reprojectPoint(new Double[]{right, top}, fromEPSG, toEPSG);
-        return new Double[]{lowerLeft[0], lowerLeft[1], upperRight[0], upperRight[1]};
+    private static double[] padBounds(double left, double bottom, double right, double top, double buffer) {
+        return new double[]{left + buffer, bottom + buffer, right - buffer, top - buffer};
     }
 
-    private static Double[] padBounds(double left, double bottom, double right, double top, double buffer) {
-        return new Double[]{left + buffer, bottom + buffer, right - buffer, top - buffer};
-    }
+    // NOTE: Point sets are flat arrays of coordinate pairs: {x0, y0, x1, y1, ...}
 
-    // NOTE: Inputs are in Web Mercator and outputs are in WGS84 lat/lon
-    private static Double[][] createRandomPointsInBounds(double left, double bottom, double right, double top, int numPoints) {
+    // NOTE: Inputs and outputs are in Web Mercator. The points are generated lazily.
+    private static Stream<double[]> createRandomPointsInBounds(SplittableRandom random, double left, double bottom, double right, double top, int numPoints) {
         double xRange = right - left;
         double yRange = top - bottom;
-        return Stream.generate(() -> new Double[]{left + Math.random() * xRange,
-                                                  bottom + Math.random() * yRange})
-            .limit(numPoints)
-            .map(point -> reprojectPoint(point, 3857, 4326))
-            .toArray(Double[][]::new);
+        return Stream.generate(() -> new double[]{left + random.nextDouble() * xRange,
+                                                  bottom + random.nextDouble() * yRange})
+            .limit(numPoints);
     }
 
-    // NOTE: Inputs are in Web Mercator and outputs are in WGS84 lat/lon
-    private static Double[][] createGriddedPointsInBounds(double left, double bottom, double right, double top, double spacing) {
+    // NOTE: Inputs and outputs are in Web Mercator. The points are generated lazily.
+    private static Stream<double[]> createGriddedPointsInBounds(double left, double bottom, double right, double top, double spacing) {
         double xRange = right - left;
         double yRange = top - bottom;
         long xSteps = (long) Math.floor(xRange / spacing);
         long ySteps = (long) Math.floor(yRange / spacing);
         double xPadding = (xRange - xSteps * spacing) / 2.0;
         double yPadding = (yRange - ySteps * spacing) / 2.0;
-        return Stream.iterate(left + xPadding, x -> x + spacing)
-            .limit(xSteps + 1)
-            .flatMap(x -> Stream.iterate(bottom + yPadding, y -> y + spacing)
-                     .limit(ySteps + 1)
-                     .map(y -> reprojectPoint(new Double[]{x, y}, 3857, 4326)))
-            .toArray(Double[][]::new);
-    }
-
-    private static Double[][] createRandomSampleSet(Double[] plotCenter, String plotShape, double plotSize, int samplesPerPlot) {
-        Double[] plotCenterWebMercator = reprojectPoint(plotCenter, 4326, 3857);
-        double plotX =  plotCenterWebMercator[0];
-        double plotY =  plotCenterWebMercator[1];
-        double radius = plotSize / 2.0;
-        double left =   plotX - radius;
-        double right =  plotX + radius;
-        double top =    plotY + radius;
-        double bottom = plotY - radius;
-        if (plotShape.equals("circle")) {
-            return Stream.generate(() -> 2.0 * Math.PI * Math.random())
-                .limit(samplesPerPlot)
-                .map(offsetAngle -> {
-                        double offsetMagnitude = radius * Math.random();
-                        double xOffset = offsetMagnitude * Math.cos(offsetAngle);
-                        double yOffset = offsetMagnitude * Math.sin(offsetAngle);
-                        return reprojectPoint(new Double[]{plotX + xOffset, plotY + yOffset}, 3857, 4326);
-                    })
-                .toArray(Double[][]::new);
-        } else {
-            return createRandomPointsInBounds(left, bottom, right, top, samplesPerPlot);
-        }
+        return LongStream.rangeClosed(0, xSteps)
+            .mapToObj(i -> left + xPadding + i * spacing)
+            .flatMap(x -> LongStream.rangeClosed(0, ySteps)
+                     .mapToObj(j -> new double[]{x, bottom + yPadding + j * spacing}));
     }
 
-    private static double squareDistance(double x1, double y1, double x2, double y2) {
-        return Math.pow(x2 - x1, 2.0) + Math.pow(y2 - y1, 2.0);
+    // Returns the number of points createGriddedPointsInBounds generates
+    private static long countGriddedPointsInBounds(double left, double bottom, double right, double top, double spacing) {
+        return ((long) Math.floor((right - left) / spacing) + 1) * ((long) Math.floor((top - bottom) / spacing) + 1);
     }
 
-    private static Double[][] createGriddedSampleSet(Double[] plotCenter, String plotShape, double plotSize, double sampleResolution) {
-        Double[] plotCenterWebMercator = reprojectPoint(plotCenter, 4326, 3857);
-        double centerX = plotCenterWebMercator[0];
-        double centerY = plotCenterWebMercator[1];
-        double radius = plotSize / 2.0;
-        double radiusSquared = radius * radius;
-        double left = centerX - radius;
-        double bottom = centerY - radius;
-        double right = centerX + radius;
-        double top = centerY + radius;
-        long steps = (long) Math.floor(plotSize / sampleResolution);
-        double padding = (plotSize - steps * sampleResolution) / 2.0;
-        return Stream.iterate(left + padding, x -> x + sampleResolution)
-            .limit(steps + 1)
-            .flatMap(x -> Stream.iterate(bottom + padding, y -> y + sampleResolution)
-                     .limit(steps + 1)
-                     .filter(y -> plotShape.equals("square") || squareDistance(x, y, centerX, centerY) < radiusSquared)
-                     .map(y -> reprojectPoint(new Double[]{x, y}, 3857, 4326)))
-            .toArray(Double[][]::new);
+    // Removes up to maxPoints points from points and returns them as a flat array
+    private static double[] nextPoints(Iterator<double[]> points, int maxPoints) {
+        DoubleStream.Builder buffer = DoubleStream.builder();
+        for (int i = 0; i < maxPoints && points.hasNext(); i++) {
+            double[] point = points.next();
+            buffer.add(point[0]).add(point[1]);
+        }
+        return buffer.build().toArray();
     }
 
     // NOTE: The CSV file should contain a header row (which will be skipped) and these fields: lon, lat, ...
-    private static Double[][] loadCsvPoints(String filename) {
+    private static double[] loadCsvPoints(String filename) {
 		try (Stream<String> lines = Files.lines(Paths.get(expandResourcePath("/csv/" + filename)))) {
 			return lines.skip(1)
-                .map(line -> {
+                .flatMapToDouble(line -> {
                         String[] fields = Arrays.stream(line.split(",")).map(String::trim).toArray(String[]::new);
-                        return new Double[]{Double.parseDouble(fields[0]),
-                                            Double.parseDouble(fields[1])};
+                        return DoubleStream.of(Double.parseDouble(fields[0]),
+                                               Double.parseDouble(fields[1]));
                     })
-                .toArray(Double[][]::new);
+                .toArray();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static Double[] calculateBounds(Double[][] points, double buffer) {
-        Double[] lons = Arrays.stream(points).map(point -> point[0]).toArray(Double[]::new);
-        Double[] lats = Arrays.stream(points).map(point -> point[1]).toArray(Double[]::new);
-        double lonMin = Arrays.stream(lons).min(Comparator.naturalOrder()).get();
-        double latMin = Arrays.stream(lats).min(Comparator.naturalOrder()).get();
-        double lonMax = Arrays.stream(lons).max(Comparator.naturalOrder()).get();
-        double latMax = Arrays.stream(lats).max(Comparator.naturalOrder()).get();
-        Double[] bounds = reprojectBounds(lonMin, latMin, lonMax, latMax, 4326, 3857);
-        Double[] paddedBounds = padBounds(bounds[0], bounds[1], bounds[2], bounds[3], -buffer);
+    private static double[] calculateBounds(double[] points, double buffer) {
+        DoubleSummaryStatistics lons = IntStream.range(0, points.length / 2).mapToDouble(i -> points[2 * i]).summaryStatistics();
+        DoubleSummaryStatistics lats = IntStream.range(0, points.length / 2).mapToDouble(i -> points[2 * i + 1]).summaryStatistics();
+        double[] bounds = reprojectBounds(lons.getMin(), lats.getMin(), lons.getMax(), lats.getMax(), 4326, 3857);
+        double[] paddedBounds = padBounds(bounds[0], bounds[1], bounds[2], bounds[3], -buffer);
         return reprojectBounds(paddedBounds[0], paddedBounds[1], paddedBounds[2], paddedBounds[3], 3857, 4326);
     }
 
+    private static final int plotChunkSize = 1024;
+
+    // The plots of one chunk, ready to be written
+    private static class PlotChunk {
+        final double[] centers; // lat/lon
+        final int[] sampleCounts;
+        final long[] sampleSeeds; // empty for gridded samples
+
+        PlotChunk(double[] centers, int[] sampleCounts, long[] sampleSeeds) {
+            this.centers = centers;
+            this.sampleCounts = sampleCounts;
+            this.sampleSeeds = sampleSeeds;
+        }
+    }
+
+    // Every chunk of random plots draws its centers from its own generator, seeded
+    // from the project's seed and the chunk's index like SamplePoints.getPlotSeed
+    // (but from a different stream), so that the chunks can be generated on any
+    // thread and the plot set is still the same for the same seed.
+    private static double[] createRandomChunk(long projectSeed, int chunkIndex, int numPlots, double left, double bottom, double right, double top) {
+        SplittableRandom random = new SplittableRandom(projectSeed ^ ~(chunkIndex * 0x94D049BB133111EBL));
+        int chunkPlots = Math.min(plotChunkSize, numPlots - chunkIndex * plotChunkSize);
+        return nextPoints(createRandomPointsInBounds(random, left, bottom, right, top, chunkPlots).iterator(), chunkPlots);
+    }
+
+    // Reprojects the centers of a chunk whose first plot has index firstPlotIndex and counts
+    // (gridded) or seeds (random) the samples of its plots. centers are in Web Mercator, or
+    // lat/lon if centersEPSG is 4326.
+    private static PlotChunk createPlotChunk(double[] centers, int centersEPSG, int firstPlotIndex, long projectSeed, String sampleDistribution,
+                                             String plotShape, double plotSize, double sampleResolution, int samplesPerPlot) {
+        double[] centersLatLon = centersEPSG == 4326 ? centers : reprojectCoordinates(centers.clone(), 3857, 4326);
+        boolean gridded = sampleDistribution.equals("gridded");
+        // Count the gridded samples around the centers as SamplePoints will derive them from the stored lat/lon
+        double[] centersDerived = gridded ? reprojectCoordinates(centersLatLon.clone(), 4326, 3857) : centers;
+        int[] sampleCounts = IntStream.range(0, centers.length / 2)
+            .parallel()
+            .map(i -> gridded
+                 ? SamplePoints.countGriddedSampleSet(centersDerived[2 * i], centersDerived[2 * i + 1], plotShape, plotSize, sampleResolution)
+                 : samplesPerPlot)
+            .toArray();
+        long[] sampleSeeds = gridded
+            ? new long[]{}
+            : IntStream.range(0, centers.length / 2).mapToLong(i -> SamplePoints.getPlotSeed(projectSeed, firstPlotIndex + i)).toArray();
+        return new PlotChunk(centersLatLon, sampleCounts, sampleSeeds);
+    }
+
+    // Only the ids of the samples are stored, since their points can be derived again (see SamplePoints)
+    private static void writePlot(JsonWriter writer, int plotId, double lon, double lat, Optional<Long> sampleSeed, int numSamples) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(plotId);
+        writer.name("center").value(makeGeoJsonPoint(lon, lat).toString());
+        writer.name("flagged").value(false);
+        writer.name("analyses").value(0);
+        writer.name("user").nullValue();
+        if (sampleSeed.isPresent()) {
+            writer.name("sampleSeed").value(sampleSeed.get());
+        }
+        writer.name("samples").beginArray();
+        for (int i = 0; i < numSamples; i++) {
+            writer.beginObject();
+            writer.name("id").value(i + 1);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
     private static JsonElement getOrZero(JsonObject obj, String field) {
         return obj.get(field).isJsonNull() ? new JsonPrimitive(0) : obj.get(field);
     }
 
-    private static synchronized JsonObject createProjectPlots(JsonObject newProject) {
+    // Calls reportPercent with the percentage of plots written after each chunk
+    private static JsonObject createProjectPlots(JsonObject newProject, IntConsumer reportPercent) {
         // Store the parameters needed for plot generation in local variables with nulls set to 0
         double lonMin =             getOrZero(newProject,"lonMin").getAsDouble();
         double latMin =             getOrZero(newProject,"latMin").getAsDouble();
@@ -607,10 +705,9 @@ public class Projects {
         double sampleResolution =   getOrZero(newProject,"sampleResolution").getAsDouble();
 
         // If plotDistribution is csv, calculate the lat/lon bounds from the csv contents
-        Double[][] csvPoints = new Double[][]{};
+        double[] csvPoints = plotDistribution.equals("csv") ? loadCsvPoints(newProject.get("csv").getAsString()) : new double[]{};
         if (plotDistribution.equals("csv")) {
-            csvPoints = loadCsvPoints(newProject.get("csv").getAsString());
-            Double[] csvBounds = calculateBounds(csvPoints, plotSize / 2.0);
+            double[] csvBounds = calculateBounds(csvPoints, plotSize / 2.0);
             lonMin = csvBounds[0];
             latMin = csvBounds[1];
             lonMax = csvBounds[2];
@@ -625,57 +722,94 @@ public class Projects {
         newProject.remove("latMax");
 
         // Convert the lat/lon boundary coordinates to Web Mercator (units: meters) and apply an interior buffer of plotSize / 2
-        Double[] bounds = reprojectBounds(lonMin, latMin, lonMax, latMax, 4326, 3857);
-        Double[] paddedBounds = padBounds(bounds[0], bounds[1], bounds[2], bounds[3], plotSize / 2.0);
+        double[] bounds = reprojectBounds(lonMin, latMin, lonMax, latMax, 4326, 3857);
+        double[] paddedBounds = padBounds(bounds[0], bounds[1], bounds[2], bounds[3], plotSize / 2.0);
         double left = paddedBounds[0];
         double bottom = paddedBounds[1];
         double right = paddedBounds[2];
         double top = paddedBounds[3];
 
-        // Generate the plot objects and their associated sample points
-        Double[][] newPlotCenters = plotDistribution.equals("random") ? createRandomPointsInBounds(left, bottom, right, top, numPlots)
-                                  : plotDistribution.equals("gridded") ? createGriddedPointsInBounds(left, bottom, right, top, plotSpacing)
-                                  : csvPoints;
-        IntSupplier plotIndexer = makeCounter();
-        JsonArray newPlots = Arrays.stream(newPlotCenters)
-            .map(plotCenter -> {
-                    JsonObject newPlot = new JsonObject();
-                    newPlot.addProperty("id", plotIndexer.getAsInt());
-                    newPlot.addProperty("center", makeGeoJsonPoint(plotCenter[0], plotCenter[1]).toString());
-                    newPlot.addProperty("flagged", false);
-                    newPlot.addProperty("analyses", 0);
-                    newPlot.add("user", null);
-
-                    Double[][] newSamplePoints = sampleDistribution.equals("gridded")
-                        ? createGriddedSampleSet(plotCenter, plotShape, plotSize, sampleResolution)
-                        : createRandomSampleSet(plotCenter, plotShape, plotSize, samplesPerPlot);
-                    IntSupplier sampleIndexer = makeCounter();
-                    JsonArray newSamples = Arrays.stream(newSamplePoints)
-                    .map(point -> {
-                            JsonObject newSample = new JsonObject();
-                            newSample.addProperty("id", sampleIndexer.getAsInt());
-                            newSample.addProperty("point", makeGeoJsonPoint(point[0], point[1]).toString());
-                            return newSample;
-                        })
-                    .collect(intoJsonArray);
-
-                    newPlot.add("samples", newSamples);
-                    return newPlot;
-                })
-            .collect(intoJsonArray);
-
-        // Write the plot data to a new plot-data-<id>.json file
-        writeJsonFile("plot-data-" + newProject.get("id").getAsString() + ".json", newPlots);
+        // Reuse the project's seed if it has one, so that its plot set is regenerated exactly
+        // NOTE: New seeds fit into 53 bits, so they survive a round trip through JavaScript numbers.
+        long seed = newProject.has("plotSeed") ? newProject.get("plotSeed").getAsLong() : ThreadLocalRandom.current().nextLong(1L << 53);
+        newProject.addProperty("plotSeed", seed);
+
+        // Gridded and csv plot centers are generated lazily, in Web Mercator (or lat/lon for csv plots).
+        // Random plot centers are drawn per chunk (see createRandomChunk).
+        boolean randomCenters = plotDistribution.equals("random");
+        Stream<double[]> newPlotCenters = randomCenters ? Stream.empty()
+                                        : plotDistribution.equals("gridded") ? createGriddedPointsInBounds(left, bottom, right, top, plotSpacing)
+                                        : IntStream.range(0, csvPoints.length / 2).mapToObj(i -> new double[]{csvPoints[2 * i], csvPoints[2 * i + 1]});
+        int numRandomChunks = randomCenters ? (numPlots + plotChunkSize - 1) / plotChunkSize : 0;
+        int centersEPSG = plotDistribution.equals("csv") ? 4326 : 3857;
+        long expectedPlots = plotDistribution.equals("random") ? numPlots
+                           : plotDistribution.equals("gridded") ? countGriddedPointsInBounds(left, bottom, right, top, plotSpacing)
+                           : csvPoints.length / 2;
+
+        // Generate the plots in chunks of plotChunkSize and stream them to a new plot-data-<id>.json file.
+        // Batches of one chunk per worker of the common fork-join pool are generated in parallel and then
+        // written in order, so that only the current batch is held in memory.
+        int batchSize = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+        int[] counts = {0, 0}; // plots written, samples in the first plot
+        String projectId = newProject.get("id").getAsString();
+        PlotMutationLog.discard(projectId);
+        streamJsonFile("plot-data-" + projectId + ".json", writer -> {
+                try {
+                    Iterator<double[]> plotCenters = newPlotCenters.iterator();
+                    writer.beginArray();
+                    for (int firstChunk = 0; ; firstChunk += batchSize) {
+                        int batchStart = firstChunk;
+                        // The lazy centers have to be taken in order, so only random centers are drawn in parallel
+                        List<double[]> batchCenters = randomCenters
+                            ? IntStream.range(batchStart, Math.min(batchStart + batchSize, numRandomChunks))
+                                .parallel()
+                                .mapToObj(chunkIndex -> createRandomChunk(seed, chunkIndex, numPlots, left, bottom, right, top))
+                                .collect(Collectors.toList())
+                            : Stream.generate(() -> nextPoints(plotCenters, plotChunkSize))
+                                .limit(batchSize)
+                                .filter(centers -> centers.length > 0)
+                                .collect(Collectors.toList());
+                        if (batchCenters.isEmpty()) {
+                            break;
+                        }
+                        List<PlotChunk> chunks = IntStream.range(0, batchCenters.size())
+                            .parallel()
+                            .mapToObj(i -> createPlotChunk(batchCenters.get(i), centersEPSG, (batchStart + i) * plotChunkSize, seed,
+                                                           sampleDistribution, plotShape, plotSize, sampleResolution, samplesPerPlot))
+                            .collect(Collectors.toList());
+                        for (PlotChunk chunk : chunks) {
+                            int firstPlotIndex = counts[0];
+                            for (int i = 0; i < chunk.sampleCounts.length; i++) {
+                                Optional<Long> sampleSeed = chunk.sampleSeeds.length > 0 ? Optional.of(chunk.sampleSeeds[i]) : Optional.empty();
+                                writePlot(writer, firstPlotIndex + i + 1, chunk.centers[2 * i], chunk.centers[2 * i + 1], sampleSeed, chunk.sampleCounts[i]);
+                            }
+                            if (firstPlotIndex == 0) {
+                                counts[1] = chunk.sampleCounts[0];
+                            }
+                            counts[0] += chunk.sampleCounts.length;
+                            reportPercent.accept((int) Math.min(99, 100L * counts[0] / Math.max(1, expectedPlots)));
+                        }
+                    }
+                    writer.endArray();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
 
         // Update numPlots and samplesPerPlot to match the numbers that were generated
-        newProject.addProperty("numPlots", newPlots.size());
-        newProject.addProperty("samplesPerPlot", newPlots.get(0).getAsJsonObject().getAsJsonArray("samples").size());
+        newProject.addProperty("numPlots", counts[0]);
+        newProject.addProperty("samplesPerPlot", counts[1]);
+        newProject.addProperty("samplePoints", "derived");
 
         // Return the updated project object
         return newProject;
     }
 
-    public static synchronized String createProject(Request req, Response res) {
+    public static String getProjectJobStatus(Request req, Response res) {
+        return ProjectJobs.getStatus(req.params(":id")).toString();
+    }
+
+    public static String createProject(Request req, Response res) {
         try {
             // Create a new multipart config for the servlet
             // NOTE: This is for Jetty. Under Tomcat, this is handled in the webapp/META-INF/context.xml file.
@@ -692,21 +826,6 @@ public class Projects {
             newProject.addProperty("name", partToString(req.raw().getPart("name")));
             newProject.addProperty("description", partToString(req.raw().getPart("description")));
 
-            // Read in the existing project list
-            JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
-
-            // Generate a new project id
-            int newProjectId = getNextId(projects);
-            newProject.addProperty("id", newProjectId);
-
-            // Upload the plot-distribution-csv-file if one was provided
-            if (newProject.get("plotDistribution").getAsString().equals("csv")) {
-                String csvFileName = writeFilePart(req, "plot-distribution-csv-file", expandResourcePath("/csv"), "project-" + newProjectId);
-                newProject.addProperty("csv", csvFileName);
-            } else {
-                newProject.add("csv", null);
-            }
-
             // Add ids to the sampleValues and clean up some of their unnecessary fields
             JsonArray sampleValues = newProject.get("sampleValues").getAsJsonArray();
             IntSupplier sampleValueIndexer = makeCounter();
@@ -728,15 +847,43 @@ public class Projects {
             newProject.addProperty("attribution", getImageryAttribution(newProject.get("baseMapSource").getAsString(),
                                                                         newProject.get("imageryYear").getAsString()));
 
-            // Create the requested plot set and write it to plot-data-<newProjectId>.json
-            JsonObject newProjectUpdated = createProjectPlots(newProject);
+            // Reserve a new project id
+            int newProjectId = ProjectJobs.reserveProjectId();
+            newProject.addProperty("id", newProjectId);
+
+            // Upload the plot-distribution-csv-file if one was provided
+            if (newProject.get("plotDistribution").getAsString().equals("csv")) {
+                String csvFileName = writeFilePart(req, "plot-distribution-csv-file", expandResourcePath("/csv"), "project-" + newProjectId);
+                newProject.addProperty("csv", csvFileName);
+            } else {
+                newProject.add("csv", null);
+            }
+
+            // Generate the plots in the background and only lock project-list.json to register the new project
+            String jobId = ProjectJobs.submit(newProjectId, job -> {
+                    ProjectJobs.updateJob(job, "generating", 0);
+
+                    // Create the requested plot set and write it to plot-data-<newProjectId>.json
+                    JsonObject newProjectUpdated = createProjectPlots(newProject,
+                                                                      percent -> ProjectJobs.updateJob(job, "generating", percent));
+                    if (PlotColumnStore.isEnabled()) {
+                        PlotColumnStore.convert(newProjectUpdated);
+                    }
+
+                    // Write the new entry to project-list.json
+                    ProjectJobs.updateJob(job, "registering", 100);
+                    FileLocks.runWithWriteLock("project-list.json", () -> {
+                            JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
+                            projects.add(newProjectUpdated);
+                            writeJsonFile("project-list.json", projects);
+                        });
 
-            // Write the new entry to project-list.json
-            projects.add(newProjectUpdated);
-            writeJsonFile("project-list.json", projects);
+                    // Only report the job as done once the project is on disk
+                    syncJsonFile("project-list.json");
+                });
 
-            // Indicate that the project was created successfully
-            return newProjectId + "";
+            // Indicate that the project creation job was started
+            return ProjectJobs.getStatus(jobId).toString();
         } catch (Exception e) {
             // Indicate that an error occurred with project creation
             throw new RuntimeException(e);
@@ -0,0 +1,44 @@
+package org.openforis.ceo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+// Coordinate reprojection between EPSG codes (always lon/lat axis order).
+//
+// - The MathTransform for each (from, to) pair is looked up once and
+//   then reused, since decoding EPSG codes is far more expensive than
+//   transforming points. MathTransforms are immutable, so they can be
+//   shared between threads.
+// - Coordinates are passed as flat double[] buffers of x/y pairs
+//   ({x0, y0, x1, y1, ...}), so a whole set of points is reprojected in
+//   one MathTransform call without creating a Geometry per point.
+public class Reprojection {
+
+    private static final Map<String, MathTransform> transforms = new ConcurrentHashMap<String, MathTransform>();
+
+    private static MathTransform getTransform(int fromEPSG, int toEPSG) {
+        return transforms.computeIfAbsent(fromEPSG + ":" + toEPSG, key -> {
+                try {
+                    CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:" + fromEPSG, true);
+                    CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:" + toEPSG, true);
+                    return CRS.findMathTransform(sourceCRS, targetCRS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+    }
+
+    // Reprojects the x/y pairs in coordinates in place and returns coordinates
+    public static double[] reprojectCoordinates(double[] coordinates, int fromEPSG, int toEPSG) {
+        try {
+            getTransform(fromEPSG, toEPSG).transform(coordinates, 0, coordinates, 0, coordinates.length / 2);
+            return coordinates;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
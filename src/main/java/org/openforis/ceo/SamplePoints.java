@@ -0,0 +1,234 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.intoJsonArray;
+import static org.openforis.ceo.JsonUtils.parseJson;
+import static org.openforis.ceo.JsonUtils.readJsonFile;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+import static org.openforis.ceo.JsonUtils.toStream;
+import static org.openforis.ceo.JsonUtils.writeJsonFile;
+import static org.openforis.ceo.Reprojection.reprojectCoordinates;
+
+// Generates the sample points of plots. The plot files only store the
+// ids (and collected values) of the samples, and their points are
+// derived again when a plot is handed out, from the plot's center, the
+// project's plotShape, plotSize, sampleDistribution and sampleResolution
+// and, for random samples, the plot's sampleSeed.
+//
+// - A plot's samples are derived if they have no point fields. Plot
+//   files written before this change keep their points until
+//   migrateProjects has checked that deriving them gives the same
+//   positions.
+// - Derived points are in the order of the plot's samples array.
+public class SamplePoints {
+
+    // Stored and derived points closer than this (in degrees, about 0.1 mm) count as the same
+    private static final double tolerance = 1e-9;
+
+    // Every plot draws its random numbers from its own generator, seeded
+    // from the project's seed and the plot's index, so that a plot set
+    // can be regenerated exactly, however its plots are spread over threads.
+    public static long getPlotSeed(long projectSeed, int plotIndex) {
+        return new SplittableRandom(projectSeed ^ (plotIndex * 0xBF58476D1CE4E5B9L)).nextLong();
+    }
+
+    // NOTE: The plot center is in Web Mercator and outputs are in WGS84 lat/lon
+    public static double[] createRandomSampleSet(long plotSeed, double plotX, double plotY, String plotShape, double plotSize, int samplesPerPlot) {
+        SplittableRandom random = new SplittableRandom(plotSeed);
+        double radius = plotSize / 2.0;
+        if (plotShape.equals("circle")) {
+            double[] points = Stream.generate(() -> 2.0 * Math.PI * random.nextDouble())
+                .limit(samplesPerPlot)
+                .flatMapToDouble(offsetAngle -> {
+                        double offsetMagnitude = radius * random.nextDouble();
+                        double xOffset = offsetMagnitude * Math.cos(offsetAngle);
+                        double yOffset = offsetMagnitude * Math.sin(offsetAngle);
+                        return DoubleStream.of(plotX + xOffset, plotY + yOffset);
+                    })
+                .toArray();
+            return reprojectCoordinates(points, 3857, 4326);
+        } else {
+            double left = plotX - radius;
+            double bottom = plotY - radius;
+            double xRange = (plotX + radius) - left;
+            double yRange = (plotY + radius) - bottom;
+            double[] points = Stream.generate(() -> new double[]{left + random.nextDouble() * xRange,
+                                                                 bottom + random.nextDouble() * yRange})
+                .limit(samplesPerPlot)
+                .flatMapToDouble(DoubleStream::of)
+                .toArray();
+            return reprojectCoordinates(points, 3857, 4326);
+        }
+    }
+
+    private static double squareDistance(double x1, double y1, double x2, double y2) {
+        return Math.pow(x2 - x1, 2.0) + Math.pow(y2 - y1, 2.0);
+    }
+
+    // NOTE: Inputs and outputs are in Web Mercator
+    private static double[] createGriddedPoints(double centerX, double centerY, String plotShape, double plotSize, double sampleResolution) {
+        double radius = plotSize / 2.0;
+        double radiusSquared = radius * radius;
+        double left = centerX - radius;
+        double bottom = centerY - radius;
+        long steps = (long) Math.floor(plotSize / sampleResolution);
+        double padding = (plotSize - steps * sampleResolution) / 2.0;
+        return LongStream.rangeClosed(0, steps)
+            .mapToDouble(i -> left + padding + i * sampleResolution)
+            .flatMap(x -> LongStream.rangeClosed(0, steps)
+                     .mapToDouble(j -> bottom + padding + j * sampleResolution)
+                     .filter(y -> plotShape.equals("square") || squareDistance(x, y, centerX, centerY) < radiusSquared)
+                     .flatMap(y -> DoubleStream.of(x, y)))
+            .toArray();
+    }
+
+    // NOTE: The plot center is in Web Mercator and outputs are in WGS84 lat/lon
+    public static double[] createGriddedSampleSet(double centerX, double centerY, String plotShape, double plotSize, double sampleResolution) {
+        return reprojectCoordinates(createGriddedPoints(centerX, centerY, plotShape, plotSize, sampleResolution), 3857, 4326);
+    }
+
+    // Returns the number of points createGriddedSampleSet generates
+    public static int countGriddedSampleSet(double centerX, double centerY, String plotShape, double plotSize, double sampleResolution) {
+        return createGriddedPoints(centerX, centerY, plotShape, plotSize, sampleResolution).length / 2;
+    }
+
+    private static double[] getCoordinates(String geoJsonPoint) {
+        JsonArray coordinates = parseJson(geoJsonPoint).getAsJsonObject().get("coordinates").getAsJsonArray();
+        return new double[]{coordinates.get(0).getAsDouble(), coordinates.get(1).getAsDouble()};
+    }
+
+    private static double getDouble(JsonObject project, String field) {
+        return project.has(field) && !project.get(field).isJsonNull() ? project.get(field).getAsDouble() : 0.0;
+    }
+
+    // Returns the derived sample points of plot in WGS84, or an empty
+    // array if the project's parameters can't produce them
+    private static double[] deriveSampleSet(JsonObject project, JsonObject plot) {
+        double[] center = reprojectCoordinates(getCoordinates(plot.get("center").getAsString()), 4326, 3857);
+        String plotShape = project.get("plotShape").getAsString();
+        double plotSize = getDouble(project, "plotSize");
+        if (project.get("sampleDistribution").getAsString().equals("gridded")) {
+            return createGriddedSampleSet(center[0], center[1], plotShape, plotSize, getDouble(project, "sampleResolution"));
+        } else if (plot.has("sampleSeed")) {
+            return createRandomSampleSet(plot.get("sampleSeed").getAsLong(), center[0], center[1], plotShape, plotSize,
+                                         plot.get("samples").getAsJsonArray().size());
+        } else {
+            return new double[]{};
+        }
+    }
+
+    public static boolean hasStoredPoints(JsonObject plot) {
+        JsonArray samples = plot.get("samples").getAsJsonArray();
+        return samples.size() > 0 && samples.get(0).getAsJsonObject().has("point");
+    }
+
+    // Returns plot if its samples have stored points, or a copy of it
+    // with the derived point added to each sample otherwise
+    public static JsonObject withSamplePoints(JsonObject project, JsonObject plot) {
+        if (plot.get("samples").getAsJsonArray().size() == 0 || hasStoredPoints(plot)) {
+            return plot;
+        }
+        double[] points = deriveSampleSet(project, plot);
+        JsonArray samples = plot.get("samples").getAsJsonArray();
+        JsonArray samplesWithPoints = IntStream.range(0, samples.size())
+            .mapToObj(i -> {
+                    JsonObject sample = samples.get(i).getAsJsonObject();
+                    JsonObject sampleWithPoint = new JsonObject();
+                    sampleWithPoint.add("id", sample.get("id"));
+                    sampleWithPoint.addProperty("point", Projects.makeGeoJsonPoint(points[2 * i], points[2 * i + 1]).toString());
+                    if (sample.has("value")) {
+                        sampleWithPoint.add("value", sample.get("value"));
+                    }
+                    return sampleWithPoint;
+                })
+            .collect(intoJsonArray);
+        JsonObject plotWithPoints = new JsonObject();
+        plot.entrySet().stream()
+            .filter(field -> !field.getKey().equals("sampleSeed"))
+            .forEach(field -> plotWithPoints.add(field.getKey(), field.getKey().equals("samples") ? samplesWithPoints : field.getValue()));
+        return plotWithPoints;
+    }
+
+    // Returns a copy of the plot at plotIndex whose samples only keep
+    // their ids and values, if deriving its points gives the stored ones
+    private static Optional<JsonObject> dropSamplePoints(JsonObject project, JsonObject plot, int plotIndex) {
+        JsonObject derivedPlot = new JsonObject();
+        plot.entrySet().stream()
+            .filter(field -> !field.getKey().equals("samples"))
+            .forEach(field -> derivedPlot.add(field.getKey(), field.getValue()));
+        if (!project.get("sampleDistribution").getAsString().equals("gridded") && project.has("plotSeed")) {
+            derivedPlot.addProperty("sampleSeed", getPlotSeed(project.get("plotSeed").getAsLong(), plotIndex));
+        }
+        derivedPlot.add("samples", toStream(plot.get("samples").getAsJsonArray())
+                        .map(sample -> {
+                                JsonObject sampleWithoutPoint = new JsonObject();
+                                sample.entrySet().stream()
+                                    .filter(field -> !field.getKey().equals("point"))
+                                    .forEach(field -> sampleWithoutPoint.add(field.getKey(), field.getValue()));
+                                return sampleWithoutPoint;
+                            })
+                        .collect(intoJsonArray));
+        double[] storedPoints = toStream(plot.get("samples").getAsJsonArray())
+            .flatMapToDouble(sample -> DoubleStream.of(getCoordinates(sample.get("point").getAsString())))
+            .toArray();
+        double[] derivedPoints = deriveSampleSet(project, derivedPlot);
+        boolean samePoints = derivedPoints.length == storedPoints.length
+            && IntStream.range(0, storedPoints.length).allMatch(i -> Math.abs(derivedPoints[i] - storedPoints[i]) < tolerance);
+        return samePoints ? Optional.of(derivedPlot) : Optional.empty();
+    }
+
+    // Converts the plots of a project's plot file to derived sample
+    // points where that keeps their positions. Returns the project's
+    // samplePoints setting: "derived" if all of its plots were converted.
+    private static String migrateProject(JsonObject project) {
+        String projectId = project.get("id").getAsString();
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        return FileLocks.withWriteLock(plotFilename, () -> {
+                JsonArray plots = PlotMutationLog.readPlots(projectId).toJsonArray();
+                JsonArray migratedPlots = IntStream.range(0, plots.size())
+                    .mapToObj(i -> {
+                            JsonObject plot = plots.get(i).getAsJsonObject();
+                            return hasStoredPoints(plot) ? dropSamplePoints(project, plot, i).orElse(plot) : plot;
+                        })
+                    .collect(intoJsonArray);
+                long convertedPlots = IntStream.range(0, plots.size())
+                    .filter(i -> migratedPlots.get(i) != plots.get(i))
+                    .count();
+                if (convertedPlots > 0) {
+                    writeJsonFile(plotFilename, migratedPlots);
+                }
+                return toStream(migratedPlots).anyMatch(SamplePoints::hasStoredPoints) ? "stored" : "derived";
+            });
+    }
+
+    // Converts the plot files of projects created before sample points
+    // were derived, and records the result in each project's samplePoints
+    // field so that they are only checked once. Called on startup, after
+    // PlotMutationLog.recover has folded the mutation logs into the plot files.
+    public static void migrateProjects() {
+        Map<String, String> results = toStream(readJsonSnapshot("project-list.json").getAsJsonArray())
+            .filter(project -> !project.has("samplePoints"))
+            .filter(project -> getJsonFile(PlotMutationLog.getPlotFilename(project.get("id").getAsString())).exists())
+            .collect(Collectors.toMap(project -> project.get("id").getAsString(), SamplePoints::migrateProject));
+        if (!results.isEmpty()) {
+            FileLocks.runWithWriteLock("project-list.json", () -> {
+                    JsonArray projects = readJsonFile("project-list.json").getAsJsonArray();
+                    toStream(projects)
+                        .filter(project -> results.containsKey(project.get("id").getAsString()))
+                        .forEach(project -> project.addProperty("samplePoints", results.get(project.get("id").getAsString())));
+                    writeJsonFile("project-list.json", projects);
+                });
+        }
+    }
+
+}
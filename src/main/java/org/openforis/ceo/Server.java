@@ -6,6 +6,9 @@ import java.io.File;
 import java.net.URL;
 import spark.servlet.SparkApplication;
 import spark.template.freemarker.FreeMarkerEngine;
+import static org.openforis.ceo.Compression.compressed;
+import static org.openforis.ceo.ETags.getFileVersions;
+import static org.openforis.ceo.ETags.withETag;
 import static spark.Spark.exception;
 import static spark.Spark.get;
 import static spark.Spark.port;
@@ -66,41 +69,57 @@ public class Server implements SparkApplication {
         get("/logout",          (req, res) -> { return freemarker.render(Views.home(Users.logout(req), res)); });
 
         // Routing Table: Projects API
-        get("/get-all-projects",                (req, res) -> { return Projects.getAllProjects(req, res); });
-        get("/get-project-by-id/:id",           (req, res) -> { return Projects.getProjectById(req, res); });
-        get("/get-project-plots/:id/:max",      (req, res) -> { return Projects.getProjectPlots(req, res); });
-        get("/get-project-stats/:id",           (req, res) -> { return Projects.getProjectStats(req, res); });
-        get("/get-unanalyzed-plot/:id",         (req, res) -> { return Projects.getUnanalyzedPlot(req, res); });
-        get("/dump-project-aggregate-data/:id", (req, res) -> { return Projects.dumpProjectAggregateData(req, res); });
+        get("/get-all-projects",                withETag((req, res) -> getFileVersions("project-list.json", "institution-list.json"),
+                                                         compressed((req, res) -> { return Projects.getAllProjects(req, res); })));
+        get("/get-project-by-id/:id",           withETag((req, res) -> getFileVersions("project-list.json"),
+                                                         compressed((req, res) -> { return Projects.getProjectById(req, res); })));
+        get("/get-project-plots/:id/:max",      withETag(Projects::getProjectPlotsVersion,
+                                                         compressed(Projects::getProjectPlotsVersion, (req, res) -> { return Projects.getProjectPlots(req, res); })));
+        get("/get-project-plots-in-bbox/:id",   compressed((req, res) -> { return Projects.getProjectPlotsInBbox(req, res); }));
+        get("/get-plot-samples/:projectId/:plotId", compressed((req, res) -> { return Projects.getPlotSamples(req, res); }));
+        get("/get-project-plot-clusters/:id",   compressed((req, res) -> { return Projects.getProjectPlotClusters(req, res); }));
+        get("/get-project-stats/:id",           compressed((req, res) -> { return Projects.getProjectStats(req, res); }));
+        get("/get-unanalyzed-plot/:id",         compressed((req, res) -> { return Projects.getUnanalyzedPlot(req, res); }));
+        get("/get-project-job-status/:id",      compressed((req, res) -> { return Projects.getProjectJobStatus(req, res); }));
+        get("/dump-project-aggregate-data/:id", compressed((req, res) -> { return Projects.dumpProjectAggregateData(req, res); }));
         post("/create-project",                 (req, res) -> { return Projects.createProject(req, res); });
         post("/publish-project/:id",            (req, res) -> { return Projects.publishProject(req, res); });
         post("/close-project/:id",              (req, res) -> { return Projects.closeProject(req, res); });
         post("/archive-project/:id",            (req, res) -> { return Projects.archiveProject(req, res); });
         post("/add-user-samples",               (req, res) -> { return Projects.addUserSamples(req, res); });
         post("/flag-plot",                      (req, res) -> { return Projects.flagPlot(req, res); });
+        post("/renew-plot-lease",               (req, res) -> { return Projects.renewPlotLease(req, res); });
 
         // Routing Table: Users API
-        get("/get-all-users",                   (req, res) -> { return Users.getAllUsers(req, res); });
+        get("/get-all-users",                   compressed((req, res) -> { return Users.getAllUsers(req, res); }));
         post("/update-user-institution-role",   (req, res) -> { return Users.updateInstitutionRole(req, res); });
         post("/request-institution-membership", (req, res) -> { return Users.requestInstitutionMembership(req, res); });
 
         // Routing Table: Institutions API
-        get("/get-all-institutions",        (req, res) -> { return Institutions.getAllInstitutions(req, res); });
-        get("/get-institution-details/:id", (req, res) -> { return Institutions.getInstitutionDetails(req, res); });
+        get("/get-all-institutions",        withETag((req, res) -> getFileVersions("institution-list.json"),
+                                                     compressed((req, res) -> { return Institutions.getAllInstitutions(req, res); })));
+        get("/get-institution-details/:id", compressed((req, res) -> { return Institutions.getInstitutionDetails(req, res); }));
         post("/update-institution/:id",     (req, res) -> { return Institutions.updateInstitution(req, res); });
         post("/archive-institution/:id",    (req, res) -> { return Institutions.archiveInstitution(req, res); });
 
         // Routing Table: Imagery API
-        get("/get-all-imagery",             (req, res) -> { return Imagery.getAllImagery(req, res); });
+        get("/get-all-imagery",             withETag((req, res) -> getFileVersions("imagery-list.json", "institution-list.json"),
+                                                     compressed((req, res) -> { return Imagery.getAllImagery(req, res); })));
         post("/delete-institution-imagery", (req, res) -> { return Imagery.deleteInstitutionImagery(req, res); });
         post("/add-institution-imagery",    (req, res) -> { return Imagery.addInstitutionImagery(req, res); });
 
+        // Routing Table: Storage API
+        get("/get-cache-stats",       (req, res) -> { return JsonUtils.getCacheStats().toString(); });
+        get("/get-coalescing-stats",  (req, res) -> { return SingleFlight.getStats().toString(); });
+        get("/get-compression-stats", (req, res) -> { return Compression.getCacheStats().toString(); });
+        get("/get-write-stats",       (req, res) -> { return WriteBehind.getStats().toString(); });
+
         // Routing Table: GeoDash API
-        get("/geo-dash/id/:id",                  (req, res) -> { return GeoDash.geodashId(req, res); });
-        get("/geo-dash/update/id/:id",           (req, res) -> { return GeoDash.updateDashBoardByID(req, res); });
-        get("/geo-dash/createwidget/widget",     (req, res) -> { return GeoDash.createDashBoardWidgetByID(req, res); });
-        get("/geo-dash/updatewidget/widget/:id", (req, res) -> { return GeoDash.updateDashBoardWidgetByID(req, res); });
-        get("/geo-dash/deletewidget/widget/:id", (req, res) -> { return GeoDash.deleteDashBoardWidgetByID(req, res); });
+        get("/geo-dash/id/:id",                  compressed((req, res) -> { return GeoDash.geodashId(req, res); }));
+        get("/geo-dash/update/id/:id",           compressed((req, res) -> { return GeoDash.updateDashBoardByID(req, res); }));
+        get("/geo-dash/createwidget/widget",     compressed((req, res) -> { return GeoDash.createDashBoardWidgetByID(req, res); }));
+        get("/geo-dash/updatewidget/widget/:id", compressed((req, res) -> { return GeoDash.updateDashBoardWidgetByID(req, res); }));
+        get("/geo-dash/deletewidget/widget/:id", compressed((req, res) -> { return GeoDash.deleteDashBoardWidgetByID(req, res); }));
 
         // Routing Table: Page Not Found
         get("*", (req, res) -> { return freemarker.render(Views.pageNotFound(req, res)); });
@@ -116,6 +135,20 @@ public class Server implements SparkApplication {
         // Store the current document root for dynamic link resolution
         documentRoot = "";
 
+        // Fold any plot changes left in the mutation logs into their snapshots
+        PlotMutationLog.recover();
+
+        // Stop storing the sample points of older projects where they can be derived instead
+        SamplePoints.migrateProjects();
+
+        // Move the plots of every project into a PlotColumnStore if -Dceo.plotStore=columns
+        if (PlotColumnStore.isEnabled()) {
+            PlotColumnStore.convertAll();
+        }
+
+        // Load the saved project statistics (or rebuild them from the plot files)
+        ProjectStats.init();
+
         // Set the webserver port
         port(8080);
 
@@ -129,8 +162,28 @@ public class Server implements SparkApplication {
         // documentRoot = "/ceo";
         documentRoot = "";
 
+        // Fold any plot changes left in the mutation logs into their snapshots
+        PlotMutationLog.recover();
+
+        // Stop storing the sample points of older projects where they can be derived instead
+        SamplePoints.migrateProjects();
+
+        // Move the plots of every project into a PlotColumnStore if -Dceo.plotStore=columns
+        if (PlotColumnStore.isEnabled()) {
+            PlotColumnStore.convertAll();
+        }
+
+        // Load the saved project statistics (or rebuild them from the plot files)
+        ProjectStats.init();
+
         // Set up the routing table
         declareRoutes();
     }
 
+    // Tomcat exit point
+    public void destroy() {
+        // Write the JSON files whose changes are still queued (see WriteBehind)
+        WriteBehind.flushAll();
+    }
+
 }
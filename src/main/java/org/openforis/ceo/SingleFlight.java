@@ -0,0 +1,70 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Coalesces identical expensive computations which are in flight at the
+// same time: the first caller for a key runs the computation and every
+// caller arriving with the same key before it finishes gets its result.
+//
+// - Keys should contain everything the result depends on, including the
+//   versions of the files it is computed from (see
+//   JsonUtils.getFileVersion), so a caller never receives a result
+//   computed from older data than it has already seen.
+// - Nothing is cached: once a computation finishes, the next caller for
+//   its key starts a new one.
+// - getStats reports how many computations were run and how many
+//   callers shared the result of one that was already running.
+public class SingleFlight {
+
+    private static final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Object>>();
+    private static final AtomicLong executions = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public static <T> T run(String key, Supplier<T> compute) {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                // Rethrow the computation's own exception
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                } else {
+                    throw e;
+                }
+            }
+        } else {
+            executions.incrementAndGet();
+            try {
+                T result = compute.get();
+                future.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+    }
+
+    public static JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("executions", executions.get());
+        stats.addProperty("coalesced", coalesced.get());
+        stats.addProperty("inFlight", inFlight.size());
+        return stats;
+    }
+
+}
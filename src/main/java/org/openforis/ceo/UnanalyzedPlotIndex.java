@@ -0,0 +1,119 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+// Keeps, per project, the positions (see PlotSource) of the plots that
+// are neither flagged nor analyzed, so that getUnanalyzedPlot can pick
+// one at random in constant time.
+//
+// - The positions are stored in an int array. Removing a plot moves the
+//   last position into its slot (swap-remove), and slotOf maps each plot
+//   position back to its slot (or -1), so updates are O(1) as well.
+// - Each index remembers the version of the plots it was built from.
+//   PlotMutationLog.updatePlot and PlotColumnStore.updatePlot keep it
+//   current; any other change (a new plot set, an external edit) bumps
+//   the version and the index is rebuilt on its next use.
+public class UnanalyzedPlotIndex {
+
+    private static class Index {
+        long version;
+        int[] positions;
+        int[] slotOf;
+        int size;
+    }
+
+    private static final Map<String, Index> indexes = new ConcurrentHashMap<String, Index>();
+    private static final int randomTries = 8;
+
+    private static boolean isUnanalyzed(JsonObject plot) {
+        return plot.get("flagged").getAsBoolean() == false && plot.get("analyses").getAsInt() == 0;
+    }
+
+    private static Index buildIndex(PlotSource plots) {
+        Index index = new Index();
+        index.version = plots.getVersion();
+        index.positions = IntStream.range(0, plots.size())
+            .filter(position -> !plots.isFlagged(position) && plots.getAnalyses(position) == 0)
+            .toArray();
+        index.size = index.positions.length;
+        index.slotOf = new int[plots.size()];
+        Arrays.fill(index.slotOf, -1);
+        IntStream.range(0, index.size).forEach(slot -> index.slotOf[index.positions[slot]] = slot);
+        return index;
+    }
+
+    private static void add(Index index, int position) {
+        if (index.size == index.positions.length) {
+            index.positions = Arrays.copyOf(index.positions, Math.max(8, index.size * 2));
+        }
+        index.positions[index.size] = position;
+        index.slotOf[position] = index.size;
+        index.size += 1;
+    }
+
+    private static void remove(Index index, int position) {
+        int slot = index.slotOf[position];
+        int lastPosition = index.positions[index.size - 1];
+        index.positions[slot] = lastPosition;
+        index.slotOf[lastPosition] = slot;
+        index.slotOf[position] = -1;
+        index.size -= 1;
+    }
+
+    // Returns a random unanalyzed plot of the project for which claim
+    // returns true, or nothing if there is none. A few random slots are
+    // tried first; if claim rejects them all (e.g. because most plots are
+    // leased), the remaining slots are scanned from a random offset.
+    public static Optional<JsonObject> pickPlot(String projectId, Predicate<JsonObject> claim) {
+        return PlotSource.read(projectId, plots -> {
+                Index index = indexes.compute(projectId,
+                                              (id, current) -> current != null && current.version == plots.getVersion()
+                                                               ? current
+                                                               : buildIndex(plots));
+                if (index.size > 0) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int offset = random.nextInt(index.size);
+                    return IntStream.concat(random.ints(randomTries, 0, index.size),
+                                            IntStream.range(0, index.size).map(i -> (offset + i) % index.size))
+                        .mapToObj(slot -> plots.getPlot(index.positions[slot]))
+                        .filter(claim)
+                        .findFirst();
+                } else {
+                    return Optional.empty();
+                }
+            });
+    }
+
+    // Called by PlotMutationLog.updatePlot and PlotColumnStore.updatePlot,
+    // with the write lock of the plots' file held, after the plot at
+    // position was replaced by plot (or a summary of it) and the version
+    // went from previousVersion to version
+    public static void plotUpdated(String projectId, long previousVersion, long version, int position, JsonObject plot) {
+        Index index = indexes.get(projectId);
+        if (index != null && index.version == previousVersion) {
+            boolean indexed = index.slotOf[position] >= 0;
+            if (indexed && !isUnanalyzed(plot)) {
+                remove(index, position);
+            } else if (!indexed && isUnanalyzed(plot)) {
+                add(index, position);
+            }
+            index.version = version;
+        } else if (index != null) {
+            // Missed an earlier change, so rebuild on next use
+            indexes.remove(projectId);
+        }
+    }
+
+    // Called when the project's plots are discarded (see ProjectJobs) or converted (see PlotColumnStore)
+    public static void forget(String projectId) {
+        indexes.remove(projectId);
+    }
+
+}
@@ -0,0 +1,232 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+
+// Hash lookups for the users in user-list.json and the memberships in
+// institution-list.json, so that logins, registrations and the member
+// lists don't search the JSON arrays.
+//
+// - The user index maps emails and user ids to the users' positions in
+//   user-list.json. The user objects are those of the file's snapshot
+//   and must not be modified. The ids are kept sorted, for listings in
+//   the order of ListQuery, in a concurrent map, since those listings
+//   are read without holding the file's lock.
+// - The membership index keeps the members, admins and pending users of
+//   each institution as BitSets of user ids, plus the institutions each
+//   user is a member or admin of.
+// - Each index remembers the version of its file. Users.register and
+//   the membership changes in Users update them in place through
+//   userAdded and membershipUpdated; any other change to the files
+//   bumps their version and the index is rebuilt on its next use.
+public class UserIndex {
+
+    private static class Users {
+        long version;
+        // Replaced by a longer array when a user is added, before the new position is indexed
+        volatile JsonArray users;
+        final Map<String, Integer> positionsByEmail = new HashMap<String, Integer>();
+        final NavigableMap<Integer, Integer> positionsById = new ConcurrentSkipListMap<Integer, Integer>();
+
+        Users(long version, JsonArray users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+
+    private static class Membership {
+        final BitSet members = new BitSet();
+        final BitSet admins = new BitSet();
+        final BitSet pending = new BitSet();
+    }
+
+    private static class Memberships {
+        long version;
+        final Map<Integer, Membership> institutions = new HashMap<Integer, Membership>();
+        // user id -> institution id -> "admin" or "member"
+        final Map<Integer, Map<Integer, String>> roles = new HashMap<Integer, Map<Integer, String>>();
+
+        Memberships(long version) {
+            this.version = version;
+        }
+    }
+
+    private static final AtomicReference<Users> userIndex = new AtomicReference<Users>();
+    private static final AtomicReference<Memberships> membershipIndex = new AtomicReference<Memberships>();
+
+    private static void indexUser(Users index, int position) {
+        JsonObject user = index.users.get(position).getAsJsonObject();
+        // The first user with an email or id wins, like a search of the array would
+        index.positionsByEmail.putIfAbsent(user.get("email").getAsString(), position);
+        index.positionsById.putIfAbsent(user.get("id").getAsInt(), position);
+    }
+
+    private static Users buildUsers(JsonArray users, long version) {
+        Users index = new Users(version, users);
+        IntStream.range(0, users.size()).forEach(position -> indexUser(index, position));
+        return index;
+    }
+
+    private static Users getUsers() {
+        return FileLocks.withReadLock("user-list.json", () -> {
+                // Read the version first, so a concurrent change can only make the index look stale
+                long version = getFileVersion("user-list.json");
+                return userIndex.updateAndGet(current -> current != null && current.version == version
+                                              ? current
+                                              : buildUsers(readJsonSnapshot("user-list.json").getAsJsonArray(), version));
+            });
+    }
+
+    private static void setMembership(Memberships index, int institutionId, int userId, boolean member, boolean admin, boolean pending) {
+        Membership membership = index.institutions.computeIfAbsent(institutionId, id -> new Membership());
+        membership.members.set(userId, member);
+        membership.admins.set(userId, admin);
+        membership.pending.set(userId, pending);
+        if (member || admin) {
+            index.roles.computeIfAbsent(userId, id -> new HashMap<Integer, String>()).put(institutionId, admin ? "admin" : "member");
+        } else if (index.roles.containsKey(userId)) {
+            index.roles.get(userId).remove(institutionId);
+        }
+    }
+
+    private static Memberships buildMemberships(JsonArray institutions, long version) {
+        Memberships index = new Memberships(version);
+        institutions.forEach(element -> {
+                JsonObject institution = element.getAsJsonObject();
+                int institutionId = institution.get("id").getAsInt();
+                Membership membership = index.institutions.computeIfAbsent(institutionId, id -> new Membership());
+                institution.getAsJsonArray("members").forEach(userId -> membership.members.set(userId.getAsInt()));
+                institution.getAsJsonArray("admins").forEach(userId -> membership.admins.set(userId.getAsInt()));
+                institution.getAsJsonArray("pending").forEach(userId -> membership.pending.set(userId.getAsInt()));
+            });
+        index.institutions.forEach((institutionId, membership) -> {
+                BitSet users = (BitSet) membership.members.clone();
+                users.or(membership.admins);
+                users.stream().forEach(userId -> index.roles.computeIfAbsent(userId, id -> new HashMap<Integer, String>())
+                                       .put(institutionId, membership.admins.get(userId) ? "admin" : "member"));
+            });
+        return index;
+    }
+
+    private static Memberships getMemberships() {
+        return FileLocks.withReadLock("institution-list.json", () -> {
+                long version = getFileVersion("institution-list.json");
+                return membershipIndex.updateAndGet(current -> current != null && current.version == version
+                                                    ? current
+                                                    : buildMemberships(readJsonSnapshot("institution-list.json").getAsJsonArray(), version));
+            });
+    }
+
+    // NOTE: The returned user is shared with other threads and must not be modified.
+    public static Optional<JsonObject> findUserByEmail(String email) {
+        return FileLocks.withReadLock("user-list.json", () -> {
+                Users index = getUsers();
+                return Optional.ofNullable(index.positionsByEmail.get(email))
+                    .map(position -> index.users.get(position).getAsJsonObject());
+            });
+    }
+
+    // Returns the users with the given ids in the order of their ids, skipping unknown ids
+    // NOTE: The returned users are shared with other threads and must not be modified.
+    public static List<JsonObject> getUsersById(BitSet userIds) {
+        return FileLocks.withReadLock("user-list.json", () -> {
+                Users index = getUsers();
+                return userIds.stream()
+                    .mapToObj(index.positionsById::get)
+                    .filter(position -> position != null)
+                    .map(position -> index.users.get(position).getAsJsonObject())
+                    .collect(Collectors.toList());
+            });
+    }
+
+    // Returns the users with ids above afterId in the order of their ids.
+    // The index is only ever appended to in place, so the stream may be
+    // consumed without holding the lock, and may or may not include users
+    // added meanwhile.
+    // NOTE: The returned users are shared with other threads and must not be modified.
+    public static Stream<JsonObject> streamUsers(int afterId) {
+        Users index = getUsers();
+        return index.positionsById.tailMap(afterId, false).values().stream()
+            .map(position -> index.users.get(position).getAsJsonObject());
+    }
+
+    // Returns the institutions userId is a member of, with "admin" or "member" for each
+    public static Map<Integer, String> getInstitutionRoles(int userId) {
+        return FileLocks.withReadLock("institution-list.json",
+                                      () -> new HashMap<Integer, String>(getMemberships().roles.getOrDefault(userId, Collections.emptyMap())));
+    }
+
+    // Returns "admin", "member" or "pending" for each user in the members
+    // or pending of institutionId, or nothing if there is no such institution
+    public static Optional<Map<Integer, String>> getInstitutionMembers(int institutionId) {
+        return FileLocks.withReadLock("institution-list.json", () -> {
+                Membership membership = getMemberships().institutions.get(institutionId);
+                if (membership == null) {
+                    return Optional.empty();
+                }
+                BitSet users = (BitSet) membership.members.clone();
+                users.or(membership.pending);
+                Map<Integer, String> roles = new HashMap<Integer, String>();
+                users.stream().forEach(userId -> roles.put(userId,
+                                                           membership.admins.get(userId) ? "admin"
+                                                           : membership.members.get(userId) ? "member"
+                                                           : "pending"));
+                return Optional.of(roles);
+            });
+    }
+
+    // Returns whether userId is in the {members, admins, pending} of institutionId
+    public static boolean[] getMembership(int institutionId, int userId) {
+        return FileLocks.withReadLock("institution-list.json", () -> {
+                Membership membership = getMemberships().institutions.get(institutionId);
+                return membership == null
+                    ? new boolean[]{false, false, false}
+                    : new boolean[]{membership.members.get(userId), membership.admins.get(userId), membership.pending.get(userId)};
+            });
+    }
+
+    // Called with user-list.json's write lock held, after user was
+    // appended to it and the file's version went from previousVersion to
+    // version
+    public static void userAdded(long previousVersion, long version) {
+        Users index = userIndex.get();
+        JsonArray users = readJsonSnapshot("user-list.json").getAsJsonArray();
+        if (index != null && index.version == previousVersion && users.size() == index.users.size() + 1) {
+            index.users = users;
+            indexUser(index, users.size() - 1);
+            index.version = version;
+        } else {
+            // Missed an earlier change, so rebuild on next use
+            userIndex.set(null);
+        }
+    }
+
+    // Called with institution-list.json's write lock held, after the
+    // membership of userId in institutionId was changed to the given one
+    // and the file's version went from previousVersion to version
+    public static void membershipUpdated(long previousVersion, long version, int institutionId, int userId,
+                                         boolean member, boolean admin, boolean pending) {
+        Memberships index = membershipIndex.get();
+        if (index != null && index.version == previousVersion && index.institutions.containsKey(institutionId)) {
+            setMembership(index, institutionId, userId, member, admin, pending);
+            index.version = version;
+        } else {
+            membershipIndex.set(null);
+        }
+    }
+
+}
@@ -1,23 +1,25 @@
 package org.openforis.ceo;
 
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import spark.Request;
 import spark.Response;
-import static org.openforis.ceo.JsonUtils.filterJsonArray;
 import static org.openforis.ceo.JsonUtils.findInJsonArray;
+import static org.openforis.ceo.JsonUtils.getFileVersion;
 import static org.openforis.ceo.JsonUtils.getNextId;
 import static org.openforis.ceo.JsonUtils.intoJsonArray;
-import static org.openforis.ceo.JsonUtils.mapJsonFile;
 import static org.openforis.ceo.JsonUtils.parseJson;
 import static org.openforis.ceo.JsonUtils.readJsonFile;
-import static org.openforis.ceo.JsonUtils.toStream;
+import static org.openforis.ceo.JsonUtils.syncJsonFile;
 import static org.openforis.ceo.JsonUtils.writeJsonFile;
 
 public class Users {
@@ -26,8 +28,7 @@ public class Users {
         String inputEmail = req.queryParams("email");
         String inputPassword = req.queryParams("password");
         // Check if email exists
-        JsonArray users = readJsonFile("user-list.json").getAsJsonArray();
-        Optional<JsonObject> matchingUser = findInJsonArray(users, user -> user.get("email").getAsString().equals(inputEmail));
+        Optional<JsonObject> matchingUser = UserIndex.findUserByEmail(inputEmail);
         if (matchingUser.isPresent()) {
             // Check if password matches
             JsonObject user = matchingUser.get();
@@ -58,7 +59,7 @@ public class Users {
         return Pattern.matches(emailPattern, email);
     }
 
-    public static synchronized Request register(Request req, Response res) {
+    public static Request register(Request req, Response res) {
         String inputEmail = req.queryParams("email");
         String inputPassword = req.queryParams("password");
         String inputPasswordConfirmation = req.queryParams("password-confirmation");
@@ -66,39 +67,45 @@ public class Users {
         if (isEmail(inputEmail)) {
             if (inputPassword.length() >= 8) {
                 if (inputPassword.equals(inputPasswordConfirmation)) {
-                    JsonArray users = readJsonFile("user-list.json").getAsJsonArray();
-                    Optional<JsonObject> matchingUser = findInJsonArray(users, user -> user.get("email").getAsString().equals(inputEmail));
+                    // Check for an existing account and add the new one under the same write lock
+                    Optional<Integer> addedUserId = FileLocks.withWriteLock("user-list.json", () -> {
+                            if (UserIndex.findUserByEmail(inputEmail).isPresent()) {
+                                return Optional.empty();
+                            } else {
+                                // Add a new user to user-list.json
+                                long previousVersion = getFileVersion("user-list.json");
+                                JsonArray users = readJsonFile("user-list.json").getAsJsonArray();
+                                int nextUserId = getNextId(users);
+
+                                JsonObject newUser = new JsonObject();
+                                newUser.addProperty("id", nextUserId);
+                                newUser.addProperty("email", inputEmail);
+                                newUser.addProperty("password", inputPassword);
+                                newUser.addProperty("role", "user");
+                                newUser.add("reset_key", null);
+                                newUser.add("ip_addr", null);
+
+                                users.add(newUser);
+                                writeJsonFile("user-list.json", users);
+                                UserIndex.userAdded(previousVersion, getFileVersion("user-list.json"));
+                                return Optional.of(nextUserId);
+                            }
+                        });
 
-                    if (matchingUser.isPresent()) {
+                    if (!addedUserId.isPresent()) {
                         req.session().attribute("flash_messages", new String[]{"Account " + inputEmail + " already exists."});
                     } else {
-                        // Add a new user to user-list.json
-                        int newUserId = getNextId(users);
+                        int newUserId = addedUserId.get();
                         String newUserRole = "user";
 
-                        JsonObject newUser = new JsonObject();
-                        newUser.addProperty("id", newUserId);
-                        newUser.addProperty("email", inputEmail);
-                        newUser.addProperty("password", inputPassword);
-                        newUser.addProperty("role", newUserRole);
-                        newUser.add("reset_key", null);
-                        newUser.add("ip_addr", null);
-
-                        users.add(newUser);
-                        writeJsonFile("user-list.json", users);
-
                         // Update institution-list.json
-                        mapJsonFile("institution-list.json",
-                                    institution -> {
-                                        if (institution.get("name").getAsString().equals("All Users")) {
-                                            JsonArray members = institution.get("members").getAsJsonArray();
-                                            members.add(newUserId);
-                                            institution.add("members", members);
-                                            return institution;
-                                        } else {
-                                            return institution;
-                                        }
-                                    });
+                        updateMembership(institution -> institution.get("name").getAsString().equals("All Users"),
+                                         newUserId,
+                                         membership -> new boolean[]{true, membership[1], membership[2]});
+
+                        // Don't log the user in before the account is on disk
+                        syncJsonFile("user-list.json");
+                        syncJsonFile("institution-list.json");
 
                         // Assign the username and role session attributes
                         req.session().attribute("userid", newUserId);
@@ -146,127 +153,107 @@ public class Users {
         return req;
     }
 
+    // Returns nothing for an empty or non-numeric id, which no institution has
+    private static Optional<Map<Integer, String>> getInstitutionMembers(String institutionId) {
+        try {
+            return UserIndex.getInstitutionMembers(Integer.parseInt(institutionId));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    // Accepts the fields, limit and after parameters of ListQuery
     public static String getAllUsers(Request req, Response res) {
         String institutionId = req.queryParams("institutionId");
-        JsonArray users = readJsonFile("user-list.json").getAsJsonArray();
+        ListQuery query = ListQuery.fromRequest(req);
+        Stream<JsonObject> users;
 
         if (institutionId != null) {
-            JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
-            Optional<JsonObject> matchingInstitution = findInJsonArray(institutions,
-                                                                       institution -> institution.get("id").getAsString().equals(institutionId));
-            if (matchingInstitution.isPresent()) {
-                JsonObject institution = matchingInstitution.get();
-                JsonArray members = institution.getAsJsonArray("members");
-                JsonArray admins = institution.getAsJsonArray("admins");
-                JsonArray pending = institution.getAsJsonArray("pending");
-                return toStream(users)
-                    .filter(user -> !user.get("email").getAsString().equals("admin@sig-gis.com"))
-                    .filter(user -> members.contains(user.get("id")) || pending.contains(user.get("id")))
+            Optional<Map<Integer, String>> institutionRoles = getInstitutionMembers(institutionId);
+            if (institutionRoles.isPresent()) {
+                BitSet userIds = new BitSet();
+                institutionRoles.get().keySet().stream()
+                    .filter(userId -> userId > query.afterId)
+                    .forEach(userIds::set);
+                users = UserIndex.getUsersById(userIds).stream()
                     .map(user -> {
-                            user.addProperty("institutionRole",
-                                             admins.contains(user.get("id")) ? "admin"
-                                             : members.contains(user.get("id")) ? "member"
-                                             : pending.contains(user.get("id")) ? "pending"
-                                             : "not-member");
-                            return user;
-                        })
-                    .collect(intoJsonArray)
-                    .toString();
+                            JsonObject userWithRole = new JsonObject();
+                            user.entrySet().forEach(field -> userWithRole.add(field.getKey(), field.getValue()));
+                            userWithRole.addProperty("institutionRole", institutionRoles.get().get(user.get("id").getAsInt()));
+                            return userWithRole;
+                        });
             } else {
-                return (new JsonArray()).toString();
+                users = Stream.empty();
             }
         } else {
-            return filterJsonArray(users, user -> !user.get("email").getAsString().equals("admin@sig-gis.com")).toString();
+            users = UserIndex.streamUsers(query.afterId);
         }
+
+        JsonArray page = query.page(users.filter(user -> !user.get("email").getAsString().equals("admin@sig-gis.com")),
+                                    user -> user.get("id").getAsInt())
+            .stream()
+            .map(query::project)
+            .collect(intoJsonArray);
+        query.setNextCursor(res);
+        return page.toString();
     }
 
-    public static Map<Integer, String> getInstitutionRoles(int userId) {
-        JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
-        JsonPrimitive userIdJson = new JsonPrimitive(userId);
-        return toStream(institutions)
-            .collect(Collectors.toMap(institution -> institution.get("id").getAsInt(),
-                                      institution -> {
-                                          JsonArray members = institution.getAsJsonArray("members");
-                                          JsonArray admins = institution.getAsJsonArray("admins");
-                                          if (admins.contains(userIdJson)) {
-                                              return "admin";
-                                          } else if (members.contains(userIdJson)) {
-                                              return "member";
-                                          } else {
-                                              return "not-member";
-                                          }
-                                      },
-                                      (a, b) -> b));
+    private static void setMember(JsonObject institution, String field, int userId, boolean wasMember, boolean isMember) {
+        if (isMember && !wasMember) {
+            institution.getAsJsonArray(field).add(userId);
+        } else if (wasMember && !isMember) {
+            institution.getAsJsonArray(field).remove(new JsonPrimitive(userId));
+        }
     }
 
-    public static synchronized String updateInstitutionRole(Request req, Response res) {
+    // Changes the membership of userId in the first institution matching
+    // isInstitution. change gets and returns {member, admin, pending}.
+    // The file is only rewritten if the membership changes.
+    private static void updateMembership(Predicate<JsonObject> isInstitution, int userId, UnaryOperator<boolean[]> change) {
+        FileLocks.runWithWriteLock("institution-list.json", () -> {
+                long previousVersion = getFileVersion("institution-list.json");
+                JsonArray institutions = readJsonFile("institution-list.json").getAsJsonArray();
+                findInJsonArray(institutions, isInstitution).ifPresent(institution -> {
+                        int institutionId = institution.get("id").getAsInt();
+                        boolean[] membership = UserIndex.getMembership(institutionId, userId);
+                        boolean[] updatedMembership = change.apply(membership.clone());
+                        if (!Arrays.equals(membership, updatedMembership)) {
+                            setMember(institution, "members", userId, membership[0], updatedMembership[0]);
+                            setMember(institution, "admins", userId, membership[1], updatedMembership[1]);
+                            setMember(institution, "pending", userId, membership[2], updatedMembership[2]);
+                            writeJsonFile("institution-list.json", institutions);
+                            UserIndex.membershipUpdated(previousVersion, getFileVersion("institution-list.json"), institutionId, userId,
+                                                        updatedMembership[0], updatedMembership[1], updatedMembership[2]);
+                        }
+                    });
+            });
+    }
+
+    public static String updateInstitutionRole(Request req, Response res) {
         JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
-        JsonElement userId = jsonInputs.get("userId");
+        int userId = jsonInputs.get("userId").getAsInt();
         String institutionId = jsonInputs.get("institutionId").getAsString();
         String role = jsonInputs.get("role").getAsString();
 
-        mapJsonFile("institution-list.json",
-                    institution -> {
-                        if (institution.get("id").getAsString().equals(institutionId)) {
-                            JsonArray members = institution.getAsJsonArray("members");
-                            JsonArray admins = institution.getAsJsonArray("admins");
-                            JsonArray pending = institution.getAsJsonArray("pending");
-                            if (role.equals("member")) {
-                                if (!members.contains(userId)) {
-                                    members.add(userId);
-                                }
-                                if (admins.contains(userId)) {
-                                    admins.remove(userId);
-                                }
-                                if (pending.contains(userId)) {
-                                    pending.remove(userId);
-                                }
-                            } else if (role.equals("admin")) {
-                                if (!members.contains(userId)) {
-                                    members.add(userId);
-                                }
-                                if (!admins.contains(userId)) {
-                                    admins.add(userId);
-                                }
-                                if (pending.contains(userId)) {
-                                    pending.remove(userId);
-                                }
-                            } else {
-                                members.remove(userId);
-                                admins.remove(userId);
-                                pending.remove(userId);
-                            }
-                            institution.add("members", members);
-                            institution.add("admins", admins);
-                            institution.add("pending", pending);
-                            return institution;
-                        } else {
-                            return institution;
-                        }
-                    });
+        updateMembership(institution -> institution.get("id").getAsString().equals(institutionId),
+                         userId,
+                         membership -> role.equals("member") ? new boolean[]{true, false, false}
+                                       : role.equals("admin") ? new boolean[]{true, true, false}
+                                       : new boolean[]{false, false, false});
 
         return "";
     }
 
-    public static synchronized String requestInstitutionMembership(Request req, Response res) {
+    public static String requestInstitutionMembership(Request req, Response res) {
         JsonObject jsonInputs = parseJson(req.body()).getAsJsonObject();
-        JsonElement userId = jsonInputs.get("userId");
+        int userId = jsonInputs.get("userId").getAsInt();
         String institutionId = jsonInputs.get("institutionId").getAsString();
 
-        mapJsonFile("institution-list.json",
-                    institution -> {
-                        if (institution.get("id").getAsString().equals(institutionId)) {
-                            JsonArray members = institution.getAsJsonArray("members");
-                            JsonArray pending = institution.getAsJsonArray("pending");
-                            if (!members.contains(userId) && !pending.contains(userId)) {
-                                pending.add(userId);
-                            }
-                            institution.add("pending", pending);
-                            return institution;
-                        } else {
-                            return institution;
-                        }
-                    });
+        updateMembership(institution -> institution.get("id").getAsString().equals(institutionId),
+                         userId,
+                         membership -> membership[0] || membership[2]
+                                       ? membership
+                                       : new boolean[]{membership[0], membership[1], true});
 
         return "";
     }
@@ -0,0 +1,142 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+
+// Group commit for the shared JSON files that the API routes rewrite
+// whole on every change (the *-list.json files and GeoDash's proj.json
+// and dash-*.json files).
+//
+// - JsonUtils.writeJsonFile puts the new document into JsonDocumentCache
+//   right away, so readers see it, and hands it to enqueue instead of
+//   writing it. Later writes to the same file replace the queued
+//   document, so a burst of changes costs one rewrite.
+// - A file is written ceo.writeBehind.intervalMs (default 1000) after
+//   its first queued change. When the queued changes add up to
+//   ceo.writeBehind.maxDirtyBytes (default 8 MB, counted in the last
+//   known sizes of the queued files), all files are written at once.
+// - Each file has a single writer at a time, so the writes of a file
+//   are never reordered. JsonUtils.syncJsonFile writes a file's latest
+//   document in the caller's thread, for changes that must be on disk
+//   before the caller continues.
+// - A shutdown hook (and Server.destroy in a servlet container) writes
+//   everything still queued.
+//
+// Other files (the plot files, which PlotMutationLog already logs and
+// compacts, and the files that are checked for or deleted on disk) are
+// written through. Setting ceo.writeBehind.intervalMs=0 writes every
+// file through.
+public class WriteBehind {
+
+    private static class Pending {
+        final JsonElement document;
+        final long bytes;
+
+        Pending(JsonElement document, long bytes) {
+            this.document = document;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final long intervalMs = Long.getLong("ceo.writeBehind.intervalMs", 1000L);
+    private static final long maxDirtyBytes = Long.getLong("ceo.writeBehind.maxDirtyBytes", 8L * 1024L * 1024L);
+    private static final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+    private static final Map<String, Object> writerLocks = new ConcurrentHashMap<String, Object>();
+    private static final AtomicLong dirtyBytes = new AtomicLong();
+    private static final AtomicLong queuedWrites = new AtomicLong();
+    private static final AtomicLong diskWrites = new AtomicLong();
+
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ceo-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(WriteBehind::flushAll, "ceo-write-behind-shutdown"));
+    }
+
+    public static boolean isDeferred(String filename) {
+        return intervalMs > 0
+            && (filename.endsWith("-list.json") || filename.equals("proj.json") || filename.startsWith("dash-"));
+    }
+
+    private static void scheduleFlush(String filename, long delayMs) {
+        flusher.schedule(() -> {
+                try {
+                    flush(filename);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Called with filename's write lock held, after document has become
+    // its cached contents. bytes is an estimate of the size of the
+    // serialized document (see JsonDocumentCache.getLastKnownSize).
+    public static void enqueue(String filename, JsonElement document, long bytes) {
+        queuedWrites.incrementAndGet();
+        Pending previous = pending.put(filename, new Pending(document, bytes));
+        long totalBytes = dirtyBytes.addAndGet(bytes - (previous != null ? previous.bytes : 0L));
+        if (previous == null) {
+            // A queued document is written by the flush that was scheduled with it
+            scheduleFlush(filename, intervalMs);
+        }
+        if (totalBytes >= maxDirtyBytes) {
+            flusher.execute(WriteBehind::flushAll);
+        }
+    }
+
+    // Writes the queued document of filename, if any. Returns once the
+    // latest document handed to enqueue before this call is on disk.
+    public static void flush(String filename) {
+        synchronized (writerLocks.computeIfAbsent(filename, f -> new Object())) {
+            Pending queued = pending.remove(filename);
+            if (queued == null) {
+                return;
+            }
+            dirtyBytes.addAndGet(-queued.bytes);
+            File file = getJsonFile(filename);
+            try {
+                JsonUtils.writeJsonToDisk(file, queued.document);
+            } catch (RuntimeException e) {
+                // Try again later, unless a newer document has been queued meanwhile
+                if (pending.putIfAbsent(filename, queued) == null) {
+                    dirtyBytes.addAndGet(queued.bytes);
+                    scheduleFlush(filename, intervalMs);
+                }
+                throw e;
+            }
+            JsonDocumentCache.flushed(filename, file, queued.document);
+            diskWrites.incrementAndGet();
+        }
+    }
+
+    public static void flushAll() {
+        pending.keySet().forEach(filename -> {
+                try {
+                    flush(filename);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            });
+    }
+
+    public static JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("queuedWrites", queuedWrites.get());
+        stats.addProperty("diskWrites", diskWrites.get());
+        stats.addProperty("pendingFiles", pending.size());
+        stats.addProperty("dirtyBytes", dirtyBytes.get());
+        return stats;
+    }
+
+}
@@ -9,6 +9,7 @@ angular.module("collection", []).controller("CollectionController", ["$http", fu
     this.plotsAssigned = 0;
     this.plotsFlagged = 0;
     this.imageryList = [];
+    this.leaseTimer = null;
 
     this.getProjectById = function (projectId, userId) {
         $http.get(this.root + "/get-project-by-id/" + projectId)
@@ -83,9 +84,16 @@ angular.module("collection", []).controller("CollectionController", ["$http", fu
                 if (response.data == "done") {
                     this.currentPlot = null;
                     alert("All plots have been analyzed for this project.");
+                } else if (response.data == "leased") {
+                    // The remaining plots are being analyzed by other users, who may not finish them
+                    var retrySeconds = response.headers("Retry-After");
+                    this.currentPlot = null;
+                    alert("All remaining plots are currently being analyzed by other users. "
+                          + "Trying again in " + retrySeconds + " seconds.");
+                    setTimeout(angular.bind(this, this.getPlotData, projectId), retrySeconds * 1000);
                 } else {
-                    this.currentPlot = response.data;
-                    this.loadRandomPlot();
+                    this.scheduleLeaseRenewal(response.headers("X-Plot-Lease-Seconds"));
+                    this.getPlotSamples(projectId, response.data);
                 }
             }), function errorCallback(response) {
                 console.log(response);
@@ -93,6 +101,52 @@ angular.module("collection", []).controller("CollectionController", ["$http", fu
             });
     };
 
+    // The plot comes without its samples, which are fetched separately
+    this.getPlotSamples = function (projectId, plot) {
+        $http.get(this.root + "/get-plot-samples/" + projectId + "/" + plot.id)
+            .then(angular.bind(this, function successCallback(response) {
+                plot.samples = response.data;
+                this.currentPlot = plot;
+                this.loadRandomPlot();
+            }), function errorCallback(response) {
+                console.log(response);
+                alert("Error retrieving plot samples. See console for details.");
+            });
+    };
+
+    // The current plot is reserved for this user for leaseSeconds, so renew it halfway through
+    this.scheduleLeaseRenewal = function (leaseSeconds) {
+        this.cancelLeaseRenewal();
+        if (leaseSeconds) {
+            this.leaseTimer = setTimeout(angular.bind(this, this.renewPlotLease), leaseSeconds * 500);
+        }
+    };
+
+    this.cancelLeaseRenewal = function () {
+        if (this.leaseTimer != null) {
+            clearTimeout(this.leaseTimer);
+            this.leaseTimer = null;
+        }
+    };
+
+    this.renewPlotLease = function () {
+        this.leaseTimer = null;
+        if (this.currentPlot != null) {
+            $http.post(this.root + "/renew-plot-lease",
+                       {projectId: this.projectId,
+                        plotId: this.currentPlot.id})
+                .then(angular.bind(this, function successCallback(response) {
+                    if (response.data == "expired") {
+                        console.log("The reservation of plot " + this.currentPlot.id + " has expired.");
+                    } else {
+                        this.scheduleLeaseRenewal(response.data);
+                    }
+                }), function errorCallback(response) {
+                    console.log(response);
+                });
+        }
+    };
+
     this.loadRandomPlot = function () {
         if (this.currentPlot == null) {
             this.getPlotData(this.projectId);
@@ -111,6 +165,7 @@ angular.module("collection", []).controller("CollectionController", ["$http", fu
     };
 
     this.nextPlot = function () {
+        this.cancelLeaseRenewal();
         this.currentPlot = null;
         this.userSamples = {};
         utils.disable_element("flag-plot-button");
@@ -14,7 +14,7 @@ angular.module("home", []).controller("HomeController", ["$scope", "$http", "$wi
     this.togglebtn = "auto";
 
     this.getInstitutionList = function () {
-        $http.get(this.root + "/get-all-institutions")
+        $http.get(this.root + "/get-all-institutions?fields=id,name")
             .then(angular.bind(this, function successCallback(response) {
                 this.institutionList = response.data;
             }), function errorCallback(response) {
@@ -24,7 +24,8 @@ angular.module("home", []).controller("HomeController", ["$scope", "$http", "$wi
     };
 
     this.getProjectList = function (userId) {
-        $http.get(this.root + "/get-all-projects?userId=" + userId + "&institutionId=")
+        $http.get(this.root + "/get-all-projects?userId=" + userId + "&institutionId="
+                  + "&fields=id,name,description,numPlots,boundary,institution,editable")
             .then(angular.bind(this, function successCallback(response) {
                 this.projectList = response.data;
                 this.initialize(this.root, this.userId);
@@ -35,7 +36,7 @@ angular.module("home", []).controller("HomeController", ["$scope", "$http", "$wi
     };
 
     this.getUserList = function () {
-        $http.get(this.root + "/get-all-users")
+        $http.get(this.root + "/get-all-users?fields=id,email")
             .then(angular.bind(this, function successCallback(response) {
                 this.userList = response.data;
             }), function errorCallback(response) {
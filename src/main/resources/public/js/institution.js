@@ -38,7 +38,7 @@ angular.module("institution", []).controller("InstitutionController", ["$http",
     };
 
     this.getProjectList = function (userId, institutionId) {
-        $http.get(this.root + "/get-all-projects?userId=" + userId + "&institutionId=" + institutionId)
+        $http.get(this.root + "/get-all-projects?userId=" + userId + "&institutionId=" + institutionId + "&fields=id,name")
             .then(angular.bind(this, function successCallback(response) {
                 this.projectList = response.data;
             }), function errorCallback(response) {
@@ -48,7 +48,7 @@ angular.module("institution", []).controller("InstitutionController", ["$http",
     };
 
     this.getUserList = function (institutionId) {
-        $http.get(this.root + "/get-all-users?institutionId=" + institutionId)
+        $http.get(this.root + "/get-all-users?institutionId=" + institutionId + "&fields=id,email,institutionRole")
             .then(angular.bind(this, function successCallback(response) {
                 this.userList = response.data;
                 this.nonPendingUsers = this.userList.filter(
@@ -63,7 +63,7 @@ angular.module("institution", []).controller("InstitutionController", ["$http",
     };
 
     this.getUserListComplete = function () {
-        $http.get(this.root + "/get-all-users")
+        $http.get(this.root + "/get-all-users?fields=id,email")
             .then(angular.bind(this, function successCallback(response) {
                 this.userListComplete = response.data;
             }), function errorCallback(response) {
@@ -0,0 +1,98 @@
+/*****************************************************************************
+***
+*** Create the plot_codec object to act as a namespace for this file
+***
+*****************************************************************************/
+
+var plot_codec = {};
+
+/*****************************************************************************
+***
+*** Binary Plot Lists
+***
+*** Decodes the application/x-ceo-plots responses of the plot list
+*** endpoints (see PlotCodec.java for the layout). Request them with
+*** {headers: {"Accept": plot_codec.media_type}, responseType:
+*** "arraybuffer"}.
+***
+*** The result holds one typed array per plot field. The samples of
+*** plot i are at positions sample_offsets[i] to sample_offsets[i + 1]
+*** of the sample arrays. Missing sample values are -1.
+***
+*****************************************************************************/
+
+plot_codec.media_type = "application/x-ceo-plots";
+
+plot_codec.decode = function (buffer) {
+    var bytes = new Uint8Array(buffer);
+    var position = 5; // skip "CEOP" and the format version
+
+    // Varints may exceed 32 bits, so they are decoded without bitwise operators
+    var read_varint = function () {
+        var value = 0;
+        var multiplier = 1;
+        var b;
+        do {
+            b = bytes[position++];
+            value += (b & 0x7f) * multiplier;
+            multiplier *= 128;
+        } while (b & 0x80);
+        return value;
+    };
+    var read_signed_varint = function () {
+        var value = read_varint();
+        return value % 2 == 0 ? value / 2 : -(value + 1) / 2;
+    };
+    var read_utf8 = function (length) {
+        var text = decodeURIComponent(escape(String.fromCharCode.apply(null, bytes.subarray(position, position + length))));
+        position += length;
+        return text;
+    };
+
+    var count = read_varint();
+    var plots = {count: count,
+                 ids: new Float64Array(count),
+                 lons: new Float64Array(count),
+                 lats: new Float64Array(count),
+                 flagged: new Uint8Array(count),
+                 analyses: new Uint32Array(count),
+                 users: new Array(count),
+                 sample_offsets: new Uint32Array(count + 1)};
+    var sample_ids = [];
+    var sample_lons = [];
+    var sample_lats = [];
+    var sample_values = [];
+    var id = 0, lon = 0, lat = 0;
+    for (var i = 0; i < count; i++) {
+        id += read_signed_varint();
+        lon += read_signed_varint();
+        lat += read_signed_varint();
+        var fields = bytes[position++];
+        plots.ids[i] = id;
+        plots.lons[i] = lon / 1e7;
+        plots.lats[i] = lat / 1e7;
+        plots.flagged[i] = fields & 1;
+        plots.analyses[i] = read_varint();
+        plots.users[i] = (fields & 4) ? read_utf8(read_varint()) : null;
+        if (fields & 2) {
+            var sample_count = read_varint();
+            var sample_id = 0, sample_lon = lon, sample_lat = lat;
+            for (var j = 0; j < sample_count; j++) {
+                sample_id += read_signed_varint();
+                sample_lon += read_signed_varint();
+                sample_lat += read_signed_varint();
+                var value = read_varint();
+                sample_ids.push(sample_id);
+                sample_lons.push(sample_lon / 1e7);
+                sample_lats.push(sample_lat / 1e7);
+                sample_values.push(value == 0 ? -1 : (value % 2 == 1 ? (value - 1) / 2 : -value / 2));
+            }
+        }
+        plots.sample_offsets[i + 1] = sample_ids.length;
+    }
+    plots.sample_ids = new Float64Array(sample_ids);
+    plots.sample_lons = new Float64Array(sample_lons);
+    plots.sample_lats = new Float64Array(sample_lats);
+    plots.sample_values = new Int32Array(sample_values);
+    return plots;
+};
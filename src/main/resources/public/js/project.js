@@ -39,10 +39,7 @@ angular.module("project", []).controller("ProjectController", ["$http", function
                        {transformRequest: angular.identity,
                         headers: {"Content-Type": undefined}})
                 .then(angular.bind(this, function successCallback(response) {
-                    this.details.availability = "unpublished";
-                    utils.hide_element("spinner");
-                    var newProjectId = response.data;
-                    window.location = this.root + "/project/" + newProjectId;
+                    this.waitForProjectJob(response.data.jobId);
                 }), function errorCallback(response) {
                     utils.hide_element("spinner");
                     console.log(response);
@@ -51,6 +48,30 @@ angular.module("project", []).controller("ProjectController", ["$http", function
         }
     };
 
+    // Polls the project creation job until its plots are generated and the project is registered
+    this.waitForProjectJob = function (jobId) {
+        $http.get(this.root + "/get-project-job-status/" + jobId)
+            .then(angular.bind(this, function successCallback(response) {
+                var job = response.data;
+                if (job.phase == "done") {
+                    this.details.availability = "unpublished";
+                    utils.hide_element("spinner");
+                    window.location = this.root + "/project/" + job.projectId;
+                } else if (job.phase == "failed" || job.phase == "unknown") {
+                    utils.hide_element("spinner");
+                    console.log(job);
+                    alert("Error creating project. See console for details.");
+                } else {
+                    console.log("Project creation: " + job.phase + " (" + job.percent + "% of plots generated)");
+                    setTimeout(angular.bind(this, this.waitForProjectJob, jobId), 1000);
+                }
+            }), function errorCallback(response) {
+                utils.hide_element("spinner");
+                console.log(response);
+                alert("Error creating project. See console for details.");
+            });
+    };
+
     this.publishProject = function () {
         if (confirm("Do you REALLY want to publish this project?")) {
             utils.show_element("spinner");
@@ -234,7 +255,8 @@ angular.module("project", []).controller("ProjectController", ["$http", function
     };
 
     this.getPlotList = function (projectId, maxPlots) {
-        $http.get(this.root + "/get-project-plots/" + projectId + "/" + maxPlots)
+        var boundaryExtent = map_utils.polygon_extent(this.details.boundary);
+        $http.get(this.root + "/get-project-plots-in-bbox/" + projectId + "?bbox=" + boundaryExtent.join(",") + "&limit=" + maxPlots)
             .then(angular.bind(this, function successCallback(response) {
                 this.plotList = response.data;
                 this.showPlotCenters(projectId, maxPlots);
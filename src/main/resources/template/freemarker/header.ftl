@@ -22,6 +22,7 @@
         <script type="text/javascript" src="${root}/js/ol3-popup.js"></script>
         <script type="text/javascript" src="${root}/js/map-utils.js"></script>
         <script type="text/javascript" src="${root}/js/utils.js"></script>
+        <script type="text/javascript" src="${root}/js/plot-codec.js"></script>
         <#if navlink == "Geo-Dash">
         <!----------------------------------------------------------------->
         <!-- BEGIN: Billy's GEODASH libraries -->
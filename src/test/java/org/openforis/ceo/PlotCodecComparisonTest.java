@@ -0,0 +1,161 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.parseJson;
+import static org.openforis.ceo.JsonUtils.readJsonSnapshot;
+
+// Compares the JSON and PlotCodec encodings of the sample projects'
+// plot files. The binary body must be smaller and decode to the same
+// plots, up to the quantization of the coordinates.
+public class PlotCodecComparisonTest extends TestCase {
+
+    private static final int rounds = 200;
+
+    public PlotCodecComparisonTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PlotCodecComparisonTest.class);
+    }
+
+    // Returns the average time per call in microseconds
+    private static double time(Supplier<Object> encoding) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            encoding.get();
+        }
+        return (System.nanoTime() - start) / 1000.0 / rounds;
+    }
+
+    // Clients have to parse the GeoJSON strings inside the JSON body as well
+    private static Object parseJsonPlots(String json) {
+        for (JsonElement plot : parseJson(json).getAsJsonArray()) {
+            parseJson(plot.getAsJsonObject().get("center").getAsString());
+            for (JsonElement sample : plot.getAsJsonObject().get("samples").getAsJsonArray()) {
+                parseJson(sample.getAsJsonObject().get("point").getAsString());
+            }
+        }
+        return null;
+    }
+
+    private static void assertSamePoint(String expected, String actual) {
+        JsonArray expectedCoordinates = parseJson(expected).getAsJsonObject().get("coordinates").getAsJsonArray();
+        JsonArray actualCoordinates = parseJson(actual).getAsJsonObject().get("coordinates").getAsJsonArray();
+        assertEquals(expectedCoordinates.get(0).getAsDouble(), actualCoordinates.get(0).getAsDouble(), 1e-7);
+        assertEquals(expectedCoordinates.get(1).getAsDouble(), actualCoordinates.get(1).getAsDouble(), 1e-7);
+    }
+
+    private static void assertSamePlots(JsonArray expected, JsonArray actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            JsonObject expectedPlot = expected.get(i).getAsJsonObject();
+            JsonObject actualPlot = actual.get(i).getAsJsonObject();
+            assertEquals(expectedPlot.get("id").getAsLong(), actualPlot.get("id").getAsLong());
+            assertEquals(expectedPlot.get("flagged"), actualPlot.get("flagged"));
+            assertEquals(expectedPlot.get("analyses").getAsInt(), actualPlot.get("analyses").getAsInt());
+            assertEquals(expectedPlot.get("user"), actualPlot.get("user"));
+            assertSamePoint(expectedPlot.get("center").getAsString(), actualPlot.get("center").getAsString());
+            JsonArray expectedSamples = expectedPlot.get("samples").getAsJsonArray();
+            JsonArray actualSamples = actualPlot.get("samples").getAsJsonArray();
+            assertEquals(expectedSamples.size(), actualSamples.size());
+            for (int j = 0; j < expectedSamples.size(); j++) {
+                JsonObject expectedSample = expectedSamples.get(j).getAsJsonObject();
+                JsonObject actualSample = actualSamples.get(j).getAsJsonObject();
+                assertEquals(expectedSample.get("id").getAsLong(), actualSample.get("id").getAsLong());
+                assertEquals(expectedSample.has("value") ? expectedSample.get("value").getAsLong() : null,
+                             actualSample.has("value") ? actualSample.get("value").getAsLong() : null);
+                assertSamePoint(expectedSample.get("point").getAsString(), actualSample.get("point").getAsString());
+            }
+        }
+    }
+
+    private static File[] getPlotFiles() {
+        File[] plotFiles = getJsonFile("").listFiles((dir, name) -> PlotMutationLog.isPlotFile(name));
+        assertTrue(plotFiles != null && plotFiles.length > 0);
+        Arrays.sort(plotFiles);
+        return plotFiles;
+    }
+
+    public void testSampleProjects() {
+        for (File plotFile : getPlotFiles()) {
+            JsonArray plots = readJsonSnapshot(plotFile.getName()).getAsJsonArray();
+            byte[] binary = PlotCodec.encode(plots);
+            assertSamePlots(plots, PlotCodec.decode(binary));
+            assertTrue(binary.length < plots.toString().getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    private static JsonObject makeSample(long id, Long value) {
+        JsonObject sample = new JsonObject();
+        sample.addProperty("id", id);
+        sample.addProperty("point", "{\"type\":\"Point\",\"coordinates\":[102.0123456,-0.5]}");
+        if (value != null) {
+            sample.addProperty("value", value);
+        }
+        return sample;
+    }
+
+    // A flagged plot nobody has analyzed, with unanswered samples, next to an analyzed one
+    public void testFlaggedPlotWithoutValues() {
+        JsonArray flaggedSamples = new JsonArray();
+        flaggedSamples.add(makeSample(1, null));
+        flaggedSamples.add(makeSample(2, null));
+        JsonObject flaggedPlot = new JsonObject();
+        flaggedPlot.addProperty("id", 7);
+        flaggedPlot.addProperty("center", "{\"type\":\"Point\",\"coordinates\":[102.0,-0.25]}");
+        flaggedPlot.addProperty("flagged", true);
+        flaggedPlot.addProperty("analyses", 0);
+        flaggedPlot.add("user", null);
+        flaggedPlot.add("samples", flaggedSamples);
+
+        JsonArray analyzedSamples = new JsonArray();
+        analyzedSamples.add(makeSample(1, 0L));
+        analyzedSamples.add(makeSample(2, null));
+        JsonObject analyzedPlot = new JsonObject();
+        analyzedPlot.addProperty("id", 8);
+        analyzedPlot.addProperty("center", "{\"type\":\"Point\",\"coordinates\":[-102.0,0.25]}");
+        analyzedPlot.addProperty("flagged", false);
+        analyzedPlot.addProperty("analyses", 1);
+        analyzedPlot.addProperty("user", "someone@example.com");
+        analyzedPlot.add("samples", analyzedSamples);
+
+        JsonArray plots = new JsonArray();
+        plots.add(flaggedPlot);
+        plots.add(analyzedPlot);
+        JsonArray decoded = PlotCodec.decode(PlotCodec.encode(plots));
+        assertSamePlots(plots, decoded);
+        assertTrue(decoded.get(0).getAsJsonObject().has("user"));
+        assertTrue(decoded.get(0).getAsJsonObject().get("user").isJsonNull());
+    }
+
+    // Clients decode the binary body faster than they parse the JSON one
+    // and its GeoJSON strings. Only run with -Dceo.bench=true, since
+    // wall-clock times vary too much on shared machines to decide a build.
+    public void testDecodingSpeed() {
+        if (!Boolean.getBoolean("ceo.bench")) {
+            return;
+        }
+        for (File plotFile : getPlotFiles()) {
+            JsonArray plots = readJsonSnapshot(plotFile.getName()).getAsJsonArray();
+            String json = plots.toString();
+            byte[] binary = PlotCodec.encode(plots);
+            // The first rounds warm up the JIT
+            time(() -> PlotCodec.decode(binary));
+            time(() -> parseJsonPlots(json));
+            assertTrue(plotFile.getName() + ": binary decoding slower than JSON",
+                       time(() -> PlotCodec.decode(binary)) < time(() -> parseJsonPlots(json)));
+        }
+    }
+
+}
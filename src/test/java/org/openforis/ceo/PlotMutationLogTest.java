@@ -0,0 +1,135 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.IntStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.parseJsonFile;
+import static org.openforis.ceo.JsonUtils.writeJsonFile;
+
+// Crash safety of the plot mutation log: a record torn by a crash while
+// it was being appended must be dropped on reload and by recovery,
+// while every complete record before it is kept.
+public class PlotMutationLogTest extends TestCase {
+
+    private static final String projectId = "920000";
+    private static final int numPlots = 5;
+
+    public PlotMutationLogTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PlotMutationLogTest.class);
+    }
+
+    private static File getPlotFile() {
+        return getJsonFile(PlotMutationLog.getPlotFilename(projectId));
+    }
+
+    private static File getLogFile() {
+        return getJsonFile("plot-log-" + projectId + ".jsonl");
+    }
+
+    private static void createPlotFile() {
+        JsonArray plots = new JsonArray();
+        IntStream.range(0, numPlots).forEach(i -> {
+                JsonObject sample = new JsonObject();
+                sample.addProperty("id", 1);
+                sample.addProperty("point", "{\"type\":\"Point\",\"coordinates\":[0.0,0.0]}");
+                JsonArray samples = new JsonArray();
+                samples.add(sample);
+
+                JsonObject plot = new JsonObject();
+                plot.addProperty("id", i + 1);
+                plot.addProperty("center", "{\"type\":\"Point\",\"coordinates\":[0.0,0.0]}");
+                plot.addProperty("flagged", false);
+                plot.addProperty("analyses", 0);
+                plot.add("user", null);
+                plot.add("samples", samples);
+                plots.add(plot);
+            });
+        PlotMutationLog.discard(projectId);
+        writeJsonFile(PlotMutationLog.getPlotFilename(projectId), plots);
+    }
+
+    private static void submit(int plotId, int value) {
+        PlotMutationLog.updatePlot(projectId, plotId + "", plot -> {
+                JsonObject userSamples = new JsonObject();
+                userSamples.addProperty("1", value);
+                JsonObject mutation = new JsonObject();
+                mutation.addProperty("analyses", plot.get("analyses").getAsInt() + 1);
+                mutation.addProperty("user", "log-user");
+                mutation.add("samples", userSamples);
+                return mutation;
+            });
+    }
+
+    // Asserts that plots 1 and 2 carry the values of their records and that the others are untouched
+    private static void assertPlots(String message, JsonArray plots) {
+        assertEquals(message, numPlots, plots.size());
+        IntStream.range(0, numPlots).forEach(i -> {
+                JsonObject plot = plots.get(i).getAsJsonObject();
+                JsonObject sample = plot.getAsJsonArray("samples").get(0).getAsJsonObject();
+                if (i < 2) {
+                    assertEquals(message + ": analyses of plot " + (i + 1), 1, plot.get("analyses").getAsInt());
+                    assertEquals(message + ": user of plot " + (i + 1), "log-user", plot.get("user").getAsString());
+                    assertEquals(message + ": value of plot " + (i + 1), i + 1, sample.get("value").getAsInt());
+                } else {
+                    assertEquals(message + ": analyses of plot " + (i + 1), 0, plot.get("analyses").getAsInt());
+                    assertTrue(message + ": user of plot " + (i + 1), plot.get("user").isJsonNull());
+                    assertTrue(message + ": value of plot " + (i + 1), !sample.has("value"));
+                }
+            });
+    }
+
+    public void testTornRecordIsDropped() throws Exception {
+        String plotFilename = PlotMutationLog.getPlotFilename(projectId);
+        createPlotFile();
+        try {
+            submit(1, 1);
+            submit(2, 2);
+            submit(3, 3);
+
+            // Cut the last record in half, as a crash in the middle of its append would
+            List<String> records = Files.readAllLines(getLogFile().toPath(), StandardCharsets.UTF_8);
+            assertEquals("records in log", 3, records.size());
+            long completeBytes = getLogFile().length() - records.get(2).length() - 1;
+            try (FileChannel log = FileChannel.open(getLogFile().toPath(), StandardOpenOption.WRITE)) {
+                log.truncate(completeBytes + records.get(2).length() / 2);
+            }
+
+            // Reload as after a restart
+            assertPlots("reloaded", FileLocks.withReadLock(plotFilename, () -> PlotMutationLog.loadPlotFile(getPlotFile()))
+                                   .getAsJsonArray());
+            JsonDocumentCache.invalidate(plotFilename);
+
+            // Recovery folds the complete records into the snapshot and empties the log
+            PlotMutationLog.recover();
+            assertPlots("recovered snapshot", parseJsonFile(getPlotFile()).getAsJsonArray());
+            assertEquals("log length after recovery", 0L, getLogFile().length());
+
+            // New records are appended to a clean log
+            submit(4, 4);
+            records = Files.readAllLines(getLogFile().toPath(), StandardCharsets.UTF_8);
+            assertEquals("records after recovery", 1, records.size());
+            assertEquals("plot of new record", 4, JsonUtils.parseJson(records.get(0)).getAsJsonObject().get("plotId").getAsInt());
+        } finally {
+            PlotMutationLog.discard(projectId);
+            getPlotFile().delete();
+            getLogFile().delete();
+            getJsonFile("project-stats-" + projectId + ".json").delete();
+            JsonDocumentCache.invalidate(plotFilename);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package org.openforis.ceo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import static org.openforis.ceo.JsonUtils.getJsonFile;
+import static org.openforis.ceo.JsonUtils.writeJsonFile;
+
+// Contention benchmark: N threads each submit samples to their own
+// project. With one lock per data file the projects are written in
+// parallel; the baseline funnels every submission through a single
+// monitor, as the old class-level synchronized handlers did. The
+// throughput comparison only runs with -Dceo.bench=true; the check that
+// no submission is lost always does.
+public class PlotSubmissionBenchmarkTest extends TestCase {
+
+    private static final int threads = Integer.getInteger("ceo.bench.threads", 8);
+    private static final int plotsPerProject = 50;
+    private static final int submissionsPerThread = Integer.getInteger("ceo.bench.submissions", 100);
+    private static final Object globalLock = new Object();
+
+    public PlotSubmissionBenchmarkTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PlotSubmissionBenchmarkTest.class);
+    }
+
+    private static String getProjectId(int firstId, int thread) {
+        return (firstId + thread) + "";
+    }
+
+    private static void createPlotFile(String projectId) {
+        JsonArray plots = new JsonArray();
+        IntStream.range(0, plotsPerProject).forEach(i -> {
+                JsonObject sample = new JsonObject();
+                sample.addProperty("id", 1);
+                sample.addProperty("point", "{\"type\":\"Point\",\"coordinates\":[0.0,0.0]}");
+                JsonArray samples = new JsonArray();
+                samples.add(sample);
+
+                JsonObject plot = new JsonObject();
+                plot.addProperty("id", i + 1);
+                plot.addProperty("center", "{\"type\":\"Point\",\"coordinates\":[0.0,0.0]}");
+                plot.addProperty("flagged", false);
+                plot.addProperty("analyses", 0);
+                plot.add("user", null);
+                plot.add("samples", samples);
+                plots.add(plot);
+            });
+        PlotMutationLog.discard(projectId);
+        writeJsonFile(PlotMutationLog.getPlotFilename(projectId), plots);
+    }
+
+    private static void deletePlotFile(String projectId) {
+        PlotMutationLog.discard(projectId);
+        getJsonFile(PlotMutationLog.getPlotFilename(projectId)).delete();
+        getJsonFile("plot-log-" + projectId + ".jsonl").delete();
+    }
+
+    private static void submit(String projectId, int submission) {
+        String plotId = (submission % plotsPerProject + 1) + "";
+        PlotMutationLog.updatePlot(projectId, plotId, plot -> {
+                JsonObject userSamples = new JsonObject();
+                userSamples.addProperty("1", submission % 3);
+                JsonObject mutation = new JsonObject();
+                mutation.addProperty("analyses", plot.get("analyses").getAsInt() + 1);
+                mutation.addProperty("user", "bench-user");
+                mutation.add("samples", userSamples);
+                return mutation;
+            });
+    }
+
+    // Returns submissions per second
+    private static double runThreads(IntConsumer work) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = IntStream.range(0, threads)
+            .mapToObj(thread -> new Thread(() -> {
+                    try {
+                        start.await();
+                        work.accept(thread);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }))
+            .toArray(Thread[]::new);
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return threads * submissionsPerThread / seconds;
+    }
+
+    private static double benchmark(int firstId, boolean useGlobalLock) throws InterruptedException {
+        IntStream.range(0, threads).forEach(thread -> createPlotFile(getProjectId(firstId, thread)));
+        try {
+            double throughput = runThreads(thread -> {
+                    String projectId = getProjectId(firstId, thread);
+                    IntStream.range(0, submissionsPerThread).forEach(submission -> {
+                            if (useGlobalLock) {
+                                synchronized (globalLock) {
+                                    submit(projectId, submission);
+                                }
+                            } else {
+                                submit(projectId, submission);
+                            }
+                        });
+                });
+
+            // No submission may be lost
+            IntStream.range(0, threads).forEach(thread -> {
+                    String projectId = getProjectId(firstId, thread);
+                    int analyses = FileLocks.withReadLock(PlotMutationLog.getPlotFilename(projectId),
+                                                          () -> PlotMutationLog.readPlots(projectId).stream()
+                                                                .mapToInt(plot -> plot.get("analyses").getAsInt())
+                                                                .sum());
+                    assertEquals("analyses in project " + projectId, submissionsPerThread, analyses);
+                });
+            return throughput;
+        } finally {
+            IntStream.range(0, threads).forEach(thread -> deletePlotFile(getProjectId(firstId, thread)));
+        }
+    }
+
+    public void testNoLostSubmissions() throws InterruptedException {
+        benchmark(910000, false);
+    }
+
+    // Only run with -Dceo.bench=true, since wall-clock times vary too
+    // much on shared machines to decide a build
+    public void testSubmissionThroughput() throws InterruptedException {
+        if (!Boolean.getBoolean("ceo.bench")) {
+            return;
+        }
+        double globalLockThroughput = benchmark(900000, true);
+        double fileLockThroughput = benchmark(910000, false);
+        assertTrue("per-file locks (" + fileLockThroughput + " submissions/s) should beat a single global lock ("
+                   + globalLockThroughput + " submissions/s) with " + threads + " threads",
+                   fileLockThroughput > globalLockThroughput);
+    }
+
+}